@@ -37,6 +37,10 @@ public class CrowSync {
     public static final String CONFIG_FILENAME = "crowsync.properties";
     public static final String LOG_FILENAME = "crowsync.log";
     public static final String GAMES_FILENAME = "games.xml";
+    public static final String HASH_CACHE_FILENAME = "crowsync.hashes";
+    public static final String HISTORY_FILENAME = "crowsync.history";
+    public static final String PLAN_FILENAME = "crowsync.plan";
+    public static final String CONFLICTS_DIRNAME = "conflicts";
 
     /**
      * Starts the system tray (monitor thread).
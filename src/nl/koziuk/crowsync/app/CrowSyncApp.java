@@ -76,6 +76,7 @@ public class CrowSyncApp extends SynchronizerMonitor {
     private final JMenuItem mntmStart = new JMenuItem("Start");
     private final JMenuItem mntmRestart = new JMenuItem("Restart");
     private final JMenuItem mntmStop = new JMenuItem("Stop");
+    private final JMenuItem mntmSyncNow = new JMenuItem("Sync now");
 
     /**
      * Creates the crow frame.
@@ -137,18 +138,21 @@ public class CrowSyncApp extends SynchronizerMonitor {
             mntmStart.setEnabled(false);
             mntmRestart.setEnabled(true);
             mntmStop.setEnabled(true);
+            mntmSyncNow.setEnabled(true);
         } else if (status == CrowSyncSynchronizer.STOPPED) {
             lblStatus.setText(STOPPED_MESSAGE);
             lblStatus.setIcon(STOPPED_ICON);
             mntmStart.setEnabled(true);
             mntmRestart.setEnabled(false);
             mntmStop.setEnabled(false);
+            mntmSyncNow.setEnabled(false);
         } else {
             lblStatus.setText(NOT_RESPONDING_MESSAGE);
             lblStatus.setIcon(NOT_RESPONDING_ICON);
             mntmStart.setEnabled(true);
             mntmRestart.setEnabled(true);
             mntmStop.setEnabled(true);
+            mntmSyncNow.setEnabled(true);
         }
     }
 
@@ -275,6 +279,14 @@ public class CrowSyncApp extends SynchronizerMonitor {
                     }
                 });
 
+                mnFile.add(mntmSyncNow);
+                mntmSyncNow.addActionListener(new ActionListener() {
+                    @Override
+                    public void actionPerformed(ActionEvent arg0) {
+                        syncNowAction();
+                    }
+                });
+
                 mnFile.addSeparator();
 
                 JMenuItem mntmPreferences = new JMenuItem("Preferences...");
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.persist;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import nl.koziuk.crowsync.storage.StorageBackend;
+import nl.koziuk.crowsync.storage.StorageOutputStream;
+import nl.koziuk.crowsync.util.FileUtil;
+import nl.koziuk.crowsync.util.HashUtil;
+
+/**
+ * Describes a save file that is stored as chunks in the chunk store of the
+ * sync folder. The recipe is stored in the game's directory under the save's
+ * name plus a suffix, and lists the save's size, modification time and
+ * content hash, followed by its chunks in order:
+ * 
+ * <pre>
+ * size TAB lastModified TAB hash
+ * chunkHash TAB chunkLength
+ * ...
+ * </pre>
+ * 
+ * @author marcin
+ */
+public class ChunkRecipe {
+    public static final String SUFFIX = ".crowsync-recipe";
+
+    private static final String HEADER = "# CrowSync recipe 1";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A chunk of a save file.
+     */
+    public static class Chunk {
+        private final long hash;
+        private final int length;
+
+        public Chunk(long hash, int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private final long size;
+    private final long lastModified;
+    private final long hash;
+    private final List<Chunk> chunks;
+
+    /**
+     * Creates a recipe.
+     * 
+     * @param size The size of the save file.
+     * @param lastModified The modification time of the save file.
+     * @param hash The content hash of the save file.
+     * @param chunks The chunks, in order.
+     */
+    public ChunkRecipe(long size, long lastModified, long hash, List<Chunk> chunks) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = hash;
+        this.chunks = Collections.unmodifiableList(new ArrayList<Chunk>(chunks));
+    }
+
+    /**
+     * Returns whether a file name is that of a recipe.
+     * 
+     * @param name The file name.
+     * @return True if it is a recipe.
+     */
+    public static boolean isRecipe(String name) {
+        return name.endsWith(SUFFIX) && name.length() > SUFFIX.length();
+    }
+
+    /**
+     * Returns the name of the recipe of a save file.
+     * 
+     * @param saveName The name of the save file.
+     * @return The recipe's file name.
+     */
+    public static String fileNameFor(String saveName) {
+        return saveName + SUFFIX;
+    }
+
+    /**
+     * Returns the name of the save file described by a recipe.
+     * 
+     * @param fileName The recipe's file name.
+     * @return The name of the save file, or null if it is not a recipe.
+     */
+    public static String saveNameOf(String fileName) {
+        if (!isRecipe(fileName)) {
+            return null;
+        }
+        return fileName.substring(0, fileName.length() - SUFFIX.length());
+    }
+
+    /**
+     * Reads a recipe.
+     * 
+     * @param backend The storage of the sync folder.
+     * @param path The recipe file.
+     * @return The recipe.
+     * @throws IOException If the file can't be read or is not a recipe.
+     */
+    public static ChunkRecipe read(StorageBackend backend, String path) throws IOException {
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(backend.read(path), UTF8));
+
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Not a recipe: " + path);
+            }
+
+            String[] fields = split(reader.readLine(), 3, path);
+            long size = Long.parseLong(fields[0]);
+            long lastModified = Long.parseLong(fields[1]);
+            long hash = HashUtil.fromHex(fields[2]);
+
+            List<Chunk> chunks = new ArrayList<Chunk>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                fields = split(line, 2, path);
+                chunks.add(new Chunk(HashUtil.fromHex(fields[0]), Integer.parseInt(fields[1])));
+            }
+
+            return new ChunkRecipe(size, lastModified, hash, chunks);
+        } catch (NumberFormatException e) {
+            throw new IOException("Not a recipe: " + path, e);
+        } finally {
+            FileUtil.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Replaces the recipe file atomically. The recipe file gets the
+     * modification time of the save.
+     * 
+     * @param backend The storage of the sync folder.
+     * @param path The recipe file.
+     * @throws IOException
+     */
+    public void write(StorageBackend backend, String path) throws IOException {
+        StorageOutputStream out = backend.write(path);
+
+        try {
+            Writer writer = new OutputStreamWriter(out, UTF8);
+            writer.write(HEADER + "\n");
+            writer.write(size + "\t" + lastModified + "\t" + HashUtil.toHex(hash) + "\n");
+
+            for (Chunk chunk : chunks) {
+                writer.write(HashUtil.toHex(chunk.getHash()) + "\t" + chunk.getLength() + "\n");
+            }
+
+            writer.flush();
+            out.commit(lastModified);
+        } finally {
+            FileUtil.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Returns the entry of the save file.
+     * 
+     * @param saveName The name of the save file.
+     * @return The entry.
+     */
+    public FileEntry toEntry(String saveName) {
+        return new FileEntry(saveName, size, lastModified, hash);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    private static String[] split(String line, int count, String path) throws IOException {
+        String[] fields = line == null ? new String[0] : line.split("\t");
+        if (fields.length != count) {
+            throw new IOException("Not a recipe: " + path);
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.persist;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import nl.koziuk.crowsync.storage.StorageBackend;
+import nl.koziuk.crowsync.storage.StorageOutputStream;
+import nl.koziuk.crowsync.util.FileUtil;
+import nl.koziuk.crowsync.util.HashUtil;
+import nl.koziuk.crowsync.util.IoThrottle;
+import nl.koziuk.crowsync.util.XxHash64;
+
+/**
+ * A save file that is stored compressed in the sync folder, under its own
+ * name. The file starts with a magic number and the size of the save,
+ * followed by the save as a zlib stream. Files without the magic number are
+ * stored as-is, so compressed and uncompressed saves can be mixed.
+ * 
+ * @author marcin
+ */
+public class CompressedFile {
+    private static final byte[] MAGIC = { 'C', 'S', 'Z', 1 };
+    private static final int HEADER_SIZE = MAGIC.length + 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // files with more bits of entropy per byte are probably compressed already
+    private static final double MAX_ENTROPY = 7.5;
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    private static final int SAMPLE_COUNT = 4;
+    private static final long MIN_SIZE = 512;
+
+    /**
+     * Returns whether a file is stored compressed.
+     * 
+     * @param backend The storage of the sync folder.
+     * @param path The stored file.
+     * @return True if it starts with the magic number.
+     */
+    public static boolean isCompressed(StorageBackend backend, String path) {
+        InputStream in = null;
+
+        try {
+            in = backend.read(path);
+            byte[] magic = new byte[MAGIC.length];
+            return readFully(in, magic) && Arrays.equals(magic, MAGIC);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            FileUtil.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Returns the size of the save stored in a compressed file.
+     * 
+     * @param backend The storage of the sync folder.
+     * @param path The compressed file.
+     * @return The size of the save.
+     * @throws IOException
+     */
+    public static long readSize(StorageBackend backend, String path) throws IOException {
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(backend.read(path));
+            in.skipBytes(MAGIC.length);
+            return in.readLong();
+        } finally {
+            FileUtil.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Guesses whether a save is worth compressing by measuring the entropy
+     * of a few samples spread over the file. Compressed images, archives and
+     * encrypted saves are stored as-is.
+     * 
+     * @param file The save file.
+     * @return True if it should be compressed.
+     * @throws IOException
+     */
+    public static boolean isCompressible(File file) throws IOException {
+        long size = file.length();
+
+        if (size < MIN_SIZE) {
+            return false;
+        }
+
+        long[] counts = new long[256];
+        long total = 0;
+        RandomAccessFile in = null;
+
+        try {
+            in = new RandomAccessFile(file, "r");
+            byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, size)];
+
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                in.seek((size - sample.length) * i / (SAMPLE_COUNT - 1));
+                int length = in.read(sample);
+
+                for (int j = 0; j < length; j++) {
+                    counts[sample[j] & 0xff]++;
+                }
+                total += Math.max(0, length);
+            }
+        } finally {
+            FileUtil.closeQuietly(in);
+        }
+
+        double entropy = 0;
+        for (long count : counts) {
+            if (count > 0) {
+                double p = (double) count / total;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+
+        return entropy <= MAX_ENTROPY;
+    }
+
+    /**
+     * Compresses a save. The compressed file is replaced atomically, and gets
+     * the modification time of the save.
+     * 
+     * @param saveFile The save file.
+     * @param backend The storage of the sync folder.
+     * @param path The compressed file to write.
+     * @param level The deflate level, 1 to 9.
+     * @throws IOException
+     */
+    public static void compress(File saveFile, StorageBackend backend, String path, int level) throws IOException {
+        long lastModified = saveFile.lastModified();
+        Deflater deflater = new Deflater(level);
+        InputStream in = null;
+        StorageOutputStream sout = null;
+
+        IoThrottle.operation();
+        try {
+            in = new FileInputStream(saveFile);
+            sout = backend.write(path);
+            DataOutputStream out = new DataOutputStream(sout);
+            out.write(MAGIC);
+            out.writeLong(saveFile.length());
+
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = in.read(buffer)) >= 0) {
+                deflated.write(buffer, 0, length);
+                IoThrottle.transfer(length);
+            }
+
+            deflated.finish();
+            deflated.flush();
+            sout.commit(lastModified);
+        } finally {
+            FileUtil.closeQuietly(in);
+            FileUtil.closeQuietly(sout);
+            deflater.end();
+        }
+    }
+
+    /**
+     * Stores a save as-is, for storage that can't be written by a CopyEngine.
+     * The stored file is replaced atomically, and gets the modification time
+     * of the save.
+     * 
+     * @param saveFile The save file.
+     * @param backend The storage of the sync folder.
+     * @param path The file to write.
+     * @throws IOException
+     */
+    public static void store(File saveFile, StorageBackend backend, String path) throws IOException {
+        long lastModified = saveFile.lastModified();
+        InputStream in = null;
+        StorageOutputStream out = null;
+
+        IoThrottle.operation();
+        try {
+            in = new FileInputStream(saveFile);
+            out = backend.write(path);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, length);
+                IoThrottle.transfer(length);
+            }
+
+            out.commit(lastModified);
+        } finally {
+            FileUtil.closeQuietly(in);
+            FileUtil.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Restores a save, decompressing it if it is stored compressed. The save
+     * is written to a temporary file and then renamed, and gets the
+     * modification time of the stored file.
+     * 
+     * @param backend The storage of the sync folder.
+     * @param path The stored file.
+     * @param saveFile The save file to write.
+     * @return The content hash of the save.
+     * @throws IOException
+     */
+    public static long restore(StorageBackend backend, String path, File saveFile) throws IOException {
+        FileEntry stored = backend.stat(path);
+        if (stored == null) {
+            throw new FileNotFoundException(backend.toDisplayPath(path));
+        }
+
+        File tempFile = FileUtil.tempFileFor(saveFile);
+        XxHash64 hash = new XxHash64();
+        InputStream in = null;
+        FileOutputStream out = null;
+        boolean done = false;
+
+        IoThrottle.operation();
+        try {
+            in = isCompressed(backend, path) ? open(backend, path) : backend.read(path);
+            out = new FileOutputStream(tempFile);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = in.read(buffer)) >= 0) {
+                hash.update(buffer, 0, length);
+                out.write(buffer, 0, length);
+                IoThrottle.transfer(length);
+            }
+
+            FileUtil.forceToDisk(out);
+            out.close();
+            out = null;
+            done = true;
+        } finally {
+            FileUtil.closeQuietly(in);
+            FileUtil.closeQuietly(out);
+
+            if (!done) {
+                tempFile.delete();
+            }
+        }
+
+        if (!tempFile.setLastModified(stored.getLastModified())) {
+            tempFile.delete();
+            throw new IOException("Could not set the modification time of " + tempFile);
+        }
+
+        try {
+            FileUtil.moveAtomically(tempFile, saveFile);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        return hash.getValue();
+    }
+
+    /**
+     * Hashes the content of a save, whether it is stored compressed or not.
+     * 
+     * @param backend The storage of the sync folder.
+     * @param path The stored file.
+     * @return The hash of the save.
+     * @throws IOException
+     */
+    public static long hashContent(StorageBackend backend, String path) throws IOException {
+        boolean compressed = isCompressed(backend, path);
+        File file = backend.toLocalFile(path);
+
+        if (!compressed && file != null) {
+            return HashUtil.hashFile(file);
+        }
+
+        InputStream in = null;
+
+        try {
+            in = compressed ? open(backend, path) : backend.read(path);
+            return HashUtil.hashStream(in);
+        } finally {
+            FileUtil.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Opens a compressed file for reading the save.
+     */
+    private static InputStream open(StorageBackend backend, String path) throws IOException {
+        InputStream in = backend.read(path);
+
+        try {
+            if (in.skip(HEADER_SIZE) != HEADER_SIZE) {
+                throw new IOException("Not a compressed file: " + backend.toDisplayPath(path));
+            }
+            return new InflaterInputStream(in);
+        } catch (IOException e) {
+            FileUtil.closeQuietly(in);
+            throw e;
+        }
+    }
+
+    private static boolean readFully(InputStream in, byte[] data) throws IOException {
+        int read = 0;
+
+        while (read < data.length) {
+            int n = in.read(data, read, data.length - read);
+            if (n < 0) {
+                return false;
+            }
+            read += n;
+        }
+        return true;
+    }
+}
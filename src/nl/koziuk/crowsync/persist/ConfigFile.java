@@ -21,6 +21,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Properties;
+import java.util.UUID;
 
 /**
  * For loading and saving of the flat crowsync.properties configuration file.
@@ -34,9 +35,78 @@ public class ConfigFile extends Properties {
 	private final String filename;
 
 	private static final int DEFAULT_MAX_SAVES_PER_GAME = 5;
+	private static final boolean DEFAULT_WATCH_DIRECTORIES = true;
+	private static final int DEFAULT_SYNC_THREADS = 4;
+	private static final int DEFAULT_PROCESS_TABLE_TTL = 0;
+	private static final boolean DEFAULT_MONITOR_GAMES = true;
+	private static final int DEFAULT_QUIET_PERIOD = 2000;
+	private static final int DEFAULT_COMPRESSION_LEVEL = 0;
+	private static final boolean DEFAULT_VERIFY_COPIES = true;
+	private static final boolean DEFAULT_DRY_RUN = false;
+	private static final int DEFAULT_COPY_RATE_LIMIT = 0;
+	private static final int DEFAULT_COPY_OPS_LIMIT = 0;
+	private static final int DEFAULT_PLAYING_COPY_RATE_LIMIT = 8 * 1024;
+	private static final int DEFAULT_PLAYING_COPY_OPS_LIMIT = 100;
+	private static final int DEFAULT_CYCLE_OPS_BUDGET = 1000;
+	private static final int DEFAULT_CYCLE_SIZE_BUDGET = 256 * 1024;
+
+	/**
+	 * Sync layout that keeps a full copy of every save.
+	 */
+	public static final String LAYOUT_FILES = "files";
+
+	/**
+	 * Sync layout that stores saves as shared chunks.
+	 */
+	public static final String LAYOUT_CHUNKS = "chunks";
+
+	/**
+	 * The sync folder is a directory with a directory for every game.
+	 */
+	public static final String STORAGE_FOLDER = "folder";
+
+	/**
+	 * The sync folder holds a single zip archive with everything in it. Only
+	 * a single machine may write it.
+	 */
+	public static final String STORAGE_ZIP = "zip";
+
+	/**
+	 * Written files are not forced to disk.
+	 */
+	public static final String DURABILITY_NONE = "none";
+
+	/**
+	 * Every written file is forced to disk on its own.
+	 */
+	public static final String DURABILITY_FILE = "file";
+
+	/**
+	 * Every file is forced to disk before it is renamed, and the directories
+	 * of the files written for a game are forced together.
+	 */
+	public static final String DURABILITY_GROUP = "group";
 
 	private int maxSavesPerGame = DEFAULT_MAX_SAVES_PER_GAME;
 	private String syncFolderPath = new String();
+	private boolean watchDirectories = DEFAULT_WATCH_DIRECTORIES;
+	private int syncThreads = DEFAULT_SYNC_THREADS;
+	private int processTableTtl = DEFAULT_PROCESS_TABLE_TTL;
+	private boolean monitorGames = DEFAULT_MONITOR_GAMES;
+	private int quietPeriod = DEFAULT_QUIET_PERIOD;
+	private String syncLayout = LAYOUT_FILES;
+	private String syncStorage = STORAGE_FOLDER;
+	private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+	private boolean verifyCopies = DEFAULT_VERIFY_COPIES;
+	private boolean dryRun = DEFAULT_DRY_RUN;
+	private int copyRateLimit = DEFAULT_COPY_RATE_LIMIT;
+	private int copyOpsLimit = DEFAULT_COPY_OPS_LIMIT;
+	private int playingCopyRateLimit = DEFAULT_PLAYING_COPY_RATE_LIMIT;
+	private int playingCopyOpsLimit = DEFAULT_PLAYING_COPY_OPS_LIMIT;
+	private int cycleOpsBudget = DEFAULT_CYCLE_OPS_BUDGET;
+	private int cycleSizeBudget = DEFAULT_CYCLE_SIZE_BUDGET;
+	private String durability = DURABILITY_GROUP;
+	private String machineId = new String();
 
 	/**
 	 * Creates a new ConfigParser that will load a file using a filename. If the
@@ -143,6 +213,360 @@ public class ConfigFile extends Properties {
 		this.syncFolderPath = syncFolderPath;
 	}
 
+	/**
+	 * Returns whether the save and sync directories are watched for changes
+	 * instead of being scanned every timestep.
+	 * 
+	 * @return Whether directory watching is enabled.
+	 */
+	public boolean isWatchDirectories() {
+		return watchDirectories;
+	}
+
+	/**
+	 * Sets whether the save and sync directories are watched for changes.
+	 * 
+	 * @param watchDirectories
+	 *            Whether to enable directory watching.
+	 */
+	public void setWatchDirectories(boolean watchDirectories) {
+		this.watchDirectories = watchDirectories;
+	}
+
+	/**
+	 * Returns the number of games that may be synchronized at the same time.
+	 * 
+	 * @return The number of synchronization threads.
+	 */
+	public int getSyncThreads() {
+		return syncThreads;
+	}
+
+	/**
+	 * Sets the number of games that may be synchronized at the same time.
+	 * 
+	 * @param syncThreads
+	 *            The number of synchronization threads.
+	 */
+	public void setSyncThreads(int syncThreads) {
+		this.syncThreads = syncThreads;
+	}
+
+	/**
+	 * Returns how long a snapshot of the running processes may be used to
+	 * check whether games are running.
+	 * 
+	 * @return The time in milliseconds, or 0 to take a new snapshot every
+	 *         synchronization cycle.
+	 */
+	public int getProcessTableTtl() {
+		return processTableTtl;
+	}
+
+	/**
+	 * Sets how long a snapshot of the running processes may be used.
+	 * 
+	 * @param processTableTtl
+	 *            The time in milliseconds, or 0 to take a new snapshot every
+	 *            synchronization cycle.
+	 */
+	public void setProcessTableTtl(int processTableTtl) {
+		this.processTableTtl = processTableTtl;
+	}
+
+	/**
+	 * Returns whether the executables of the games are monitored, so that
+	 * saves are sent as soon as a game exits.
+	 * 
+	 * @return Whether game monitoring is enabled.
+	 */
+	public boolean isMonitorGames() {
+		return monitorGames;
+	}
+
+	/**
+	 * Sets whether the executables of the games are monitored.
+	 * 
+	 * @param monitorGames
+	 *            Whether to enable game monitoring.
+	 */
+	public void setMonitorGames(boolean monitorGames) {
+		this.monitorGames = monitorGames;
+	}
+
+	/**
+	 * Returns how long a save file must be left alone before it is sent.
+	 * 
+	 * @return The quiet period in milliseconds, or 0 to send files right
+	 *         away.
+	 */
+	public int getQuietPeriod() {
+		return quietPeriod;
+	}
+
+	/**
+	 * Sets how long a save file must be left alone before it is sent.
+	 * 
+	 * @param quietPeriod
+	 *            The quiet period in milliseconds, or 0 to send files right
+	 *            away.
+	 */
+	public void setQuietPeriod(int quietPeriod) {
+		this.quietPeriod = quietPeriod;
+	}
+
+	/**
+	 * Returns how saves are stored in the sync folder. All machines sharing
+	 * a sync folder must use the same layout.
+	 * 
+	 * @return LAYOUT_FILES or LAYOUT_CHUNKS.
+	 */
+	public String getSyncLayout() {
+		return syncLayout;
+	}
+
+	/**
+	 * Sets how saves are stored in the sync folder.
+	 * 
+	 * @param syncLayout
+	 *            LAYOUT_FILES or LAYOUT_CHUNKS.
+	 */
+	public void setSyncLayout(String syncLayout) {
+		this.syncLayout = syncLayout;
+	}
+
+	/**
+	 * Returns how the sync folder is stored. All machines sharing a sync
+	 * folder must use the same storage.
+	 * 
+	 * @return STORAGE_FOLDER or STORAGE_ZIP.
+	 */
+	public String getSyncStorage() {
+		return syncStorage;
+	}
+
+	/**
+	 * Sets how the sync folder is stored.
+	 * 
+	 * @param syncStorage
+	 *            STORAGE_FOLDER or STORAGE_ZIP.
+	 */
+	public void setSyncStorage(String syncStorage) {
+		this.syncStorage = syncStorage;
+	}
+
+	/**
+	 * Returns how much saves are compressed in the sync folder, if they are
+	 * stored as files. Every machine sharing the sync folder must be able to
+	 * read compressed saves.
+	 * 
+	 * @return The deflate level from 1 to 9, or 0 for no compression.
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Sets how much saves are compressed in the sync folder.
+	 * 
+	 * @param compressionLevel
+	 *            The deflate level from 1 to 9, or 0 for no compression.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Returns whether every copied save is read back and compared with the
+	 * original.
+	 * 
+	 * @return Whether copies are verified.
+	 */
+	public boolean isVerifyCopies() {
+		return verifyCopies;
+	}
+
+	/**
+	 * Sets whether every copied save is read back and compared with the
+	 * original.
+	 * 
+	 * @param verifyCopies
+	 *            Whether to verify copies.
+	 */
+	public void setVerifyCopies(boolean verifyCopies) {
+		this.verifyCopies = verifyCopies;
+	}
+
+	/**
+	 * Returns whether the synchronizer only writes down what it would copy,
+	 * instead of copying it.
+	 * 
+	 * @return Whether scans are dry runs.
+	 */
+	public boolean isDryRun() {
+		return dryRun;
+	}
+
+	/**
+	 * Sets whether the synchronizer only writes down what it would copy.
+	 * 
+	 * @param dryRun
+	 *            Whether scans are dry runs.
+	 */
+	public void setDryRun(boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	/**
+	 * Returns how fast saves are copied while no game is running.
+	 * 
+	 * @return The limit in kilobytes per second, or 0 for no limit.
+	 */
+	public int getCopyRateLimit() {
+		return copyRateLimit;
+	}
+
+	/**
+	 * Sets how fast saves are copied while no game is running.
+	 * 
+	 * @param copyRateLimit
+	 *            The limit in kilobytes per second, or 0 for no limit.
+	 */
+	public void setCopyRateLimit(int copyRateLimit) {
+		this.copyRateLimit = copyRateLimit;
+	}
+
+	/**
+	 * Returns how many files are written per second while no game is
+	 * running.
+	 * 
+	 * @return The limit in operations per second, or 0 for no limit.
+	 */
+	public int getCopyOpsLimit() {
+		return copyOpsLimit;
+	}
+
+	/**
+	 * Sets how many files are written per second while no game is running.
+	 * 
+	 * @param copyOpsLimit
+	 *            The limit in operations per second, or 0 for no limit.
+	 */
+	public void setCopyOpsLimit(int copyOpsLimit) {
+		this.copyOpsLimit = copyOpsLimit;
+	}
+
+	/**
+	 * Returns how fast saves are copied while one of the games is running.
+	 * 
+	 * @return The limit in kilobytes per second, or 0 for no limit.
+	 */
+	public int getPlayingCopyRateLimit() {
+		return playingCopyRateLimit;
+	}
+
+	/**
+	 * Sets how fast saves are copied while one of the games is running.
+	 * 
+	 * @param playingCopyRateLimit
+	 *            The limit in kilobytes per second, or 0 for no limit.
+	 */
+	public void setPlayingCopyRateLimit(int playingCopyRateLimit) {
+		this.playingCopyRateLimit = playingCopyRateLimit;
+	}
+
+	/**
+	 * Returns how many files are written per second while one of the games
+	 * is running.
+	 * 
+	 * @return The limit in operations per second, or 0 for no limit.
+	 */
+	public int getPlayingCopyOpsLimit() {
+		return playingCopyOpsLimit;
+	}
+
+	/**
+	 * Sets how many files are written per second while one of the games is
+	 * running.
+	 * 
+	 * @param playingCopyOpsLimit
+	 *            The limit in operations per second, or 0 for no limit.
+	 */
+	public void setPlayingCopyOpsLimit(int playingCopyOpsLimit) {
+		this.playingCopyOpsLimit = playingCopyOpsLimit;
+	}
+
+	/**
+	 * Returns how many file operations the games may do together per
+	 * synchronization cycle. The rest is done during the next cycles.
+	 * 
+	 * @return The number of operations, or 0 for no limit.
+	 */
+	public int getCycleOpsBudget() {
+		return cycleOpsBudget;
+	}
+
+	/**
+	 * Sets how many file operations the games may do together per
+	 * synchronization cycle.
+	 * 
+	 * @param cycleOpsBudget
+	 *            The number of operations, or 0 for no limit.
+	 */
+	public void setCycleOpsBudget(int cycleOpsBudget) {
+		this.cycleOpsBudget = cycleOpsBudget;
+	}
+
+	/**
+	 * Returns how much the games may copy together per synchronization
+	 * cycle. The rest is copied during the next cycles.
+	 * 
+	 * @return The size in kilobytes, or 0 for no limit.
+	 */
+	public int getCycleSizeBudget() {
+		return cycleSizeBudget;
+	}
+
+	/**
+	 * Sets how much the games may copy together per synchronization cycle.
+	 * 
+	 * @param cycleSizeBudget
+	 *            The size in kilobytes, or 0 for no limit.
+	 */
+	public void setCycleSizeBudget(int cycleSizeBudget) {
+		this.cycleSizeBudget = cycleSizeBudget;
+	}
+
+	/**
+	 * Returns when written saves and manifests are forced to disk, so they
+	 * survive a power loss.
+	 * 
+	 * @return DURABILITY_NONE, DURABILITY_FILE or DURABILITY_GROUP.
+	 */
+	public String getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Sets when written saves and manifests are forced to disk.
+	 * 
+	 * @param durability
+	 *            DURABILITY_NONE, DURABILITY_FILE or DURABILITY_GROUP.
+	 */
+	public void setDurability(String durability) {
+		this.durability = durability;
+	}
+
+	/**
+	 * Returns the ID of this machine, which is generated once and tells the
+	 * machines sharing a sync folder apart.
+	 * 
+	 * @return The machine ID.
+	 */
+	public String getMachineId() {
+		return machineId;
+	}
+
 	/**
 	 * Convenience method that calls getProperty and converts its value to an
 	 * integer.
@@ -176,6 +600,36 @@ public class ConfigFile extends Properties {
 		setProperty(property, Integer.toString(value));
 	}
 
+	/**
+	 * Convenience method that calls getProperty and converts its value to a
+	 * boolean.
+	 * 
+	 * @param property
+	 *            The property to get.
+	 * @param defaultValue
+	 *            The property's default value.
+	 * @return The property value.
+	 */
+	private boolean getBooleanProperty(String property, boolean defaultValue) {
+		String value = getProperty(property);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value.trim());
+	}
+
+	/**
+	 * Convenience method to save a boolean using setProperty.
+	 * 
+	 * @param property
+	 *            The property to set.
+	 * @param value
+	 *            Its value.
+	 */
+	private void setBooleanProperty(String property, boolean value) {
+		setProperty(property, Boolean.toString(value));
+	}
+
 	/**
 	 * Loads config properties into attributes.
 	 */
@@ -183,6 +637,37 @@ public class ConfigFile extends Properties {
 		syncFolderPath = getProperty("sync-folder-path", "");
 		maxSavesPerGame = getIntProperty("max-saves-per-game",
 				DEFAULT_MAX_SAVES_PER_GAME);
+		watchDirectories = getBooleanProperty("watch-directories",
+				DEFAULT_WATCH_DIRECTORIES);
+		syncThreads = getIntProperty("sync-threads", DEFAULT_SYNC_THREADS);
+		processTableTtl = getIntProperty("process-table-ttl",
+				DEFAULT_PROCESS_TABLE_TTL);
+		monitorGames = getBooleanProperty("monitor-games",
+				DEFAULT_MONITOR_GAMES);
+		quietPeriod = getIntProperty("quiet-period", DEFAULT_QUIET_PERIOD);
+		syncLayout = getProperty("sync-layout", LAYOUT_FILES);
+		syncStorage = getProperty("sync-storage", STORAGE_FOLDER);
+		compressionLevel = getIntProperty("compression-level",
+				DEFAULT_COMPRESSION_LEVEL);
+		verifyCopies = getBooleanProperty("verify-copies",
+				DEFAULT_VERIFY_COPIES);
+		dryRun = getBooleanProperty("dry-run", DEFAULT_DRY_RUN);
+		copyRateLimit = getIntProperty("copy-rate-limit",
+				DEFAULT_COPY_RATE_LIMIT);
+		copyOpsLimit = getIntProperty("copy-ops-limit", DEFAULT_COPY_OPS_LIMIT);
+		playingCopyRateLimit = getIntProperty("playing-copy-rate-limit",
+				DEFAULT_PLAYING_COPY_RATE_LIMIT);
+		playingCopyOpsLimit = getIntProperty("playing-copy-ops-limit",
+				DEFAULT_PLAYING_COPY_OPS_LIMIT);
+		cycleOpsBudget = getIntProperty("cycle-ops-budget",
+				DEFAULT_CYCLE_OPS_BUDGET);
+		cycleSizeBudget = getIntProperty("cycle-size-budget",
+				DEFAULT_CYCLE_SIZE_BUDGET);
+		durability = getProperty("durability", DURABILITY_GROUP);
+		machineId = getProperty("machine-id", "");
+		if (machineId.trim().isEmpty()) {
+			machineId = UUID.randomUUID().toString();
+		}
 	}
 
 	/**
@@ -191,6 +676,24 @@ public class ConfigFile extends Properties {
 	private void saveConfig() {
 		setProperty("sync-folder-path", syncFolderPath);
 		setIntProperty("max-saves-per-game", maxSavesPerGame);
+		setBooleanProperty("watch-directories", watchDirectories);
+		setIntProperty("sync-threads", syncThreads);
+		setIntProperty("process-table-ttl", processTableTtl);
+		setBooleanProperty("monitor-games", monitorGames);
+		setIntProperty("quiet-period", quietPeriod);
+		setProperty("sync-layout", syncLayout);
+		setProperty("sync-storage", syncStorage);
+		setIntProperty("compression-level", compressionLevel);
+		setBooleanProperty("verify-copies", verifyCopies);
+		setBooleanProperty("dry-run", dryRun);
+		setIntProperty("copy-rate-limit", copyRateLimit);
+		setIntProperty("copy-ops-limit", copyOpsLimit);
+		setIntProperty("playing-copy-rate-limit", playingCopyRateLimit);
+		setIntProperty("playing-copy-ops-limit", playingCopyOpsLimit);
+		setIntProperty("cycle-ops-budget", cycleOpsBudget);
+		setIntProperty("cycle-size-budget", cycleSizeBudget);
+		setProperty("durability", durability);
+		setProperty("machine-id", machineId);
 	}
 
 }
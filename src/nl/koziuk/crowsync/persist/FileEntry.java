@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.persist;
+
+import java.io.File;
+
+/**
+ * The name, size, modification time and content hash of a save file. Entries
+ * in the sync folder may also have a version.
+ * 
+ * @author marcin
+ */
+public class FileEntry {
+    /**
+     * Hash value used when the content hash is not known.
+     */
+    public static final long NO_HASH = 0;
+
+    private final String name;
+    private final long size;
+    private final long lastModified;
+    private final long hash;
+    private final Version version;
+
+    /**
+     * Creates an entry without a version.
+     * 
+     * @param name The file name, without directory.
+     * @param size The file size in bytes.
+     * @param lastModified The modification time in milliseconds.
+     * @param hash The content hash, or NO_HASH.
+     */
+    public FileEntry(String name, long size, long lastModified, long hash) {
+        this(name, size, lastModified, hash, null);
+    }
+
+    /**
+     * Creates an entry.
+     * 
+     * @param name The file name, without directory.
+     * @param size The file size in bytes.
+     * @param lastModified The modification time in milliseconds.
+     * @param hash The content hash, or NO_HASH.
+     * @param version The version, or null if it is not known.
+     */
+    public FileEntry(String name, long size, long lastModified, long hash, Version version) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = hash;
+        this.version = version;
+    }
+
+    /**
+     * Creates an entry with the attributes of an existing file, without a
+     * content hash.
+     * 
+     * @param file The file.
+     */
+    public FileEntry(File file) {
+        this(file.getName(), file.length(), file.lastModified(), NO_HASH);
+    }
+
+    /**
+     * Returns the file name.
+     * 
+     * @return The file name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the file size.
+     * 
+     * @return The size in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the modification time.
+     * 
+     * @return The modification time in milliseconds.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the content hash.
+     * 
+     * @return The hash, or NO_HASH if it is not known.
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns whether the content hash is known.
+     * 
+     * @return True if the hash is known.
+     */
+    public boolean hasHash() {
+        return hash != NO_HASH;
+    }
+
+    /**
+     * Returns the version.
+     * 
+     * @return The version, or null if it is not known.
+     */
+    public Version getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns a copy of this entry with another version.
+     * 
+     * @param version The version, or null.
+     * @return The new entry.
+     */
+    public FileEntry withVersion(Version version) {
+        return new FileEntry(name, size, lastModified, hash, version);
+    }
+
+    /**
+     * Returns whether another entry has the same size and modification time.
+     * 
+     * @param other The other entry.
+     * @return True if size and modification time are equal.
+     */
+    public boolean sameAttributes(FileEntry other) {
+        return size == other.size && lastModified == other.lastModified;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.persist;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+import nl.koziuk.crowsync.storage.StorageBackend;
+import nl.koziuk.crowsync.storage.StorageOutputStream;
+import nl.koziuk.crowsync.util.FileUtil;
+
+/**
+ * The generations of all game directories in the sync folder, stored in a
+ * single file at the root of the sync folder. A machine that changes a
+ * game's directory increases its generation, so other machines only have to
+ * look at the directories whose generation has moved. Every line holds the
+ * generation of one game:
+ * 
+ * <pre>
+ * generation TAB gameName
+ * </pre>
+ * 
+ * Two machines increasing a generation at the same moment may overwrite each
+ * other's change, so the generations only say when a directory needs to be
+ * looked at sooner; the directories are still verified now and then.
+ * 
+ * The file may be used by several threads.
+ * 
+ * @author marcin
+ */
+public class GenerationFile {
+    public static final String FILENAME = ".crowsync-generations";
+
+    private static final String HEADER = "# CrowSync generations 1";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final StorageBackend backend;
+
+    private final Map<String, Long> generations = new TreeMap<String, Long>();
+
+    // size and modification time of the file when it was last read or
+    // written, both 0 if it didn't exist
+    private long fileSize = -1;
+    private long fileModified = -1;
+
+    /**
+     * Creates an empty generation file for a sync folder. Nothing is read
+     * yet.
+     * 
+     * @param backend The storage of the sync folder.
+     */
+    public GenerationFile(StorageBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Reads the file again if it has been changed since it was last read or
+     * written. This costs a single stat if it hasn't.
+     * 
+     * @throws IOException
+     */
+    public synchronized void refresh() throws IOException {
+        FileEntry attributes = backend.stat(FILENAME);
+        long size = attributes == null ? 0 : attributes.getSize();
+        long modified = attributes == null ? 0 : attributes.getLastModified();
+
+        if (size != fileSize || modified != fileModified) {
+            generations.clear();
+            generations.putAll(read());
+            fileSize = size;
+            fileModified = modified;
+        }
+    }
+
+    /**
+     * Returns whether the file existed when it was last read or written. If
+     * it doesn't, no machine keeps the generations up to date and every
+     * directory has to be looked at.
+     * 
+     * @return True if the generations can be trusted.
+     */
+    public synchronized boolean exists() {
+        return fileModified > 0;
+    }
+
+    /**
+     * Returns the generation of a game's directory as last read.
+     * 
+     * @param gameName The name of the game.
+     * @return The generation, or 0 if it was never changed.
+     */
+    public synchronized long get(String gameName) {
+        Long generation = generations.get(gameName);
+        return generation == null ? 0 : generation;
+    }
+
+    /**
+     * Increases the generation of a game's directory after changing it. The
+     * file is read again first, so the changes of other machines are kept.
+     * 
+     * @param gameName The name of the game.
+     * @return The new generation.
+     * @throws IOException
+     */
+    public synchronized long bump(String gameName) throws IOException {
+        generations.clear();
+        generations.putAll(read());
+
+        long generation = get(gameName) + 1;
+        generations.put(gameName, generation);
+        write();
+
+        FileEntry attributes = backend.stat(FILENAME);
+        fileSize = attributes == null ? 0 : attributes.getSize();
+        fileModified = attributes == null ? 0 : attributes.getLastModified();
+        return generation;
+    }
+
+    /**
+     * Reads the file. Lines that can't be parsed are skipped.
+     */
+    private Map<String, Long> read() throws IOException {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(backend.read(FILENAME), UTF8));
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t", 2);
+                if (fields.length == 2) {
+                    try {
+                        result.put(fields[1], Long.parseLong(fields[0]));
+                    } catch (NumberFormatException e) {
+                        // swallow
+                    }
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // no generations yet
+        } finally {
+            FileUtil.closeQuietly(reader);
+        }
+
+        return result;
+    }
+
+    /**
+     * Replaces the file atomically.
+     */
+    private void write() throws IOException {
+        StorageOutputStream out = backend.write(FILENAME);
+
+        try {
+            Writer writer = new OutputStreamWriter(out, UTF8);
+            writer.write(HEADER + "\n");
+
+            for (Map.Entry<String, Long> entry : generations.entrySet()) {
+                writer.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+            }
+
+            writer.flush();
+            out.commit();
+        } finally {
+            FileUtil.closeQuietly(out);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.persist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nl.koziuk.crowsync.util.FileUtil;
+
+/**
+ * Remembers the content hashes of local save files, keyed by path, size and
+ * modification time, so that a file which was only touched does not have to
+ * be hashed again on every scan or after a restart.
+ * 
+ * The cache is stored as a small binary file. Entries that have not been used
+ * for a week are dropped when it is saved, and only the most recently used
+ * entries are kept.
+ * 
+ * @author marcin
+ */
+public class HashCache {
+    private static final int MAGIC = 0x43534843; // "CSHC"
+    private static final int VERSION = 1;
+
+    private static final int MAX_ENTRIES = 4096;
+    private static final long MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final long hash;
+        volatile long lastUsed;
+
+        Entry(long size, long lastModified, long hash, long lastUsed) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final File file;
+
+    // by absolute path
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private volatile boolean dirty = false;
+
+    /**
+     * Creates an empty cache. Nothing is read yet.
+     * 
+     * @param file The cache file.
+     */
+    public HashCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the cache file, replacing all entries. A missing or damaged file
+     * results in an empty cache.
+     */
+    public void load() {
+        DataInputStream in = null;
+
+        entries.clear();
+        dirty = false;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                long hash = in.readLong();
+                long lastUsed = in.readLong();
+
+                entries.put(path, new Entry(size, lastModified, hash, lastUsed));
+            }
+        } catch (FileNotFoundException e) {
+            // nothing cached yet
+        } catch (IOException e) {
+            entries.clear();
+        } finally {
+            FileUtil.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the cache to a temporary file and then moves it over the cache
+     * file, if anything has been added since it was read or written.
+     * 
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+
+        List<Map.Entry<String, Entry>> kept = prune(System.currentTimeMillis());
+        File tempFile = FileUtil.tempFileFor(file);
+        DataOutputStream out = null;
+        boolean done = false;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(kept.size());
+
+            for (Map.Entry<String, Entry> mapEntry : kept) {
+                Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.hash);
+                out.writeLong(entry.lastUsed);
+            }
+
+            out.close();
+            out = null;
+            done = true;
+        } finally {
+            FileUtil.closeQuietly(out);
+
+            if (!done) {
+                tempFile.delete();
+                dirty = true;
+            }
+        }
+
+        FileUtil.moveAtomically(tempFile, file);
+    }
+
+    /**
+     * Returns the cached hash of a file.
+     * 
+     * @param file The file.
+     * @param size Its current size.
+     * @param lastModified Its current modification time.
+     * @return The hash, or FileEntry.NO_HASH if the file has changed since it
+     *         was hashed or was never hashed.
+     */
+    public long get(File file, long size, long lastModified) {
+        Entry entry = entries.get(file.getAbsolutePath());
+
+        if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+            return FileEntry.NO_HASH;
+        }
+
+        entry.lastUsed = System.currentTimeMillis();
+        return entry.hash;
+    }
+
+    /**
+     * Remembers the hash of a file.
+     * 
+     * @param file The file.
+     * @param size The size it had when it was hashed.
+     * @param lastModified The modification time it had when it was hashed.
+     * @param hash The content hash.
+     */
+    public void put(File file, long size, long lastModified, long hash) {
+        entries.put(file.getAbsolutePath(), new Entry(size, lastModified, hash, System.currentTimeMillis()));
+        dirty = true;
+    }
+
+    /**
+     * Drops old entries and returns the ones to save, most recently used
+     * first.
+     */
+    private List<Map.Entry<String, Entry>> prune(long now) {
+        List<Map.Entry<String, Entry>> kept = new ArrayList<Map.Entry<String, Entry>>();
+
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            if (now - mapEntry.getValue().lastUsed < MAX_AGE) {
+                kept.add(mapEntry);
+            } else {
+                entries.remove(mapEntry.getKey());
+            }
+        }
+
+        Collections.sort(kept, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> e1, Map.Entry<String, Entry> e2) {
+                return Long.valueOf(e2.getValue().lastUsed).compareTo(e1.getValue().lastUsed);
+            }
+        });
+
+        while (kept.size() > MAX_ENTRIES) {
+            entries.remove(kept.remove(kept.size() - 1).getKey());
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.persist;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import nl.koziuk.crowsync.storage.StorageBackend;
+import nl.koziuk.crowsync.storage.StorageOutputStream;
+import nl.koziuk.crowsync.storage.StoragePath;
+import nl.koziuk.crowsync.util.FileUtil;
+
+/**
+ * A lease on a game's directory in the sync folder, so that only one machine
+ * at a time writes saves to it. The lease is a file in the directory that
+ * names the machine holding it, a heartbeat that the holder increases when it
+ * renews the lease, and how long others should wait for the next heartbeat:
+ * 
+ * <pre>
+ * machineId TAB heartbeat TAB duration
+ * </pre>
+ * 
+ * Clocks of different machines can't be compared, so a lease held by another
+ * machine expires when its heartbeat hasn't changed for its duration,
+ * measured by the local clock from when this machine first saw it.
+ * 
+ * The file travels through the cloud client like any other file, so a lease
+ * that was just written only counts as held after the settle time, if no
+ * other machine has overwritten it by then. This makes it unlikely, but not
+ * impossible, that two machines write at the same time. A lease of this
+ * machine that hasn't expired yet is held at once, since no other machine
+ * may have taken it over, so a machine that keeps sending only waits once.
+ * 
+ * @author marcin
+ */
+public class LeaseFile {
+    public static final String FILENAME = ".crowsync-lease";
+
+    /**
+     * This machine holds the lease and may write.
+     */
+    public static final int HELD = 0;
+
+    /**
+     * This machine has written the lease, but has to wait for the settle
+     * time before it may write.
+     */
+    public static final int PENDING = 1;
+
+    /**
+     * Another machine holds the lease.
+     */
+    public static final int TAKEN = 2;
+
+    /**
+     * How long a written lease must stay unchanged before it counts as held.
+     */
+    public static final long SETTLE_TIME = 5000;
+
+    private static final long DURATION = 60 * 1000;
+
+    private static final String HEADER = "# CrowSync lease 1";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The contents of a lease file.
+     */
+    private static class Lease {
+        final String machineId;
+        final long heartbeat;
+        final long duration;
+
+        Lease(String machineId, long heartbeat, long duration) {
+            this.machineId = machineId;
+            this.heartbeat = heartbeat;
+            this.duration = duration;
+        }
+
+        boolean sameAs(Lease other) {
+            return other != null && heartbeat == other.heartbeat && machineId.equals(other.machineId);
+        }
+    }
+
+    private final StorageBackend backend;
+    private final String path;
+    private final String machineId;
+
+    // the lease of another machine as last seen, and when it was first seen
+    private Lease observed = null;
+    private long observedAt = 0;
+
+    // the lease this machine last wrote, and when
+    private Lease written = null;
+    private long writtenAt = 0;
+
+    // whether that lease has settled
+    private boolean settled = false;
+
+    // never reused, so others can tell a new lease from one they saw before
+    private long lastHeartbeat = 0;
+
+    /**
+     * Creates a lease for a directory. Nothing is read yet.
+     * 
+     * @param backend The storage of the sync folder.
+     * @param dir The game's directory in the sync folder.
+     * @param machineId The ID of this machine.
+     */
+    public LeaseFile(StorageBackend backend, String dir, String machineId) {
+        this.backend = backend;
+        this.path = StoragePath.join(dir, FILENAME);
+        this.machineId = machineId;
+    }
+
+    /**
+     * Returns whether a file name is that of a lease file.
+     * 
+     * @param name The file name.
+     * @return True if it is a lease file.
+     */
+    public static boolean isLeaseFile(String name) {
+        return FILENAME.equals(name);
+    }
+
+    /**
+     * Tries to acquire the lease. If it is free or expired, this machine's
+     * lease is written and the call has to be repeated after the settle time.
+     * This machine's own lease is held at once as long as it hasn't expired.
+     * 
+     * @param now The current time.
+     * @return HELD, PENDING or TAKEN.
+     * @throws IOException
+     */
+    public int acquire(long now) throws IOException {
+        Lease lease = read();
+
+        if (lease != null && !lease.machineId.equals(machineId)) {
+            if (!lease.sameAs(observed)) {
+                observed = lease;
+                observedAt = now;
+                return TAKEN;
+            }
+            if (now - observedAt < lease.duration) {
+                return TAKEN;
+            }
+            // the holder has stopped renewing it, it probably crashed
+        } else if (lease != null && now - lease.heartbeat < lease.duration) {
+            if (!lease.sameAs(written)) {
+                // written before this machine was restarted; its own clock
+                // made the heartbeat, so it can be compared
+                written = lease;
+                writtenAt = lease.heartbeat;
+                lastHeartbeat = Math.max(lastHeartbeat, lease.heartbeat);
+                settled = false;
+            }
+
+            settled = settled || now - writtenAt >= SETTLE_TIME;
+            return settled ? HELD : PENDING;
+        }
+
+        write(now);
+        settled = false;
+        return PENDING;
+    }
+
+    /**
+     * Increases the heartbeat of a held lease if a good part of its duration
+     * has passed, so that other machines don't think it expired.
+     * 
+     * @param now The current time.
+     * @throws IOException
+     */
+    public void renew(long now) throws IOException {
+        if (written != null && now - writtenAt >= DURATION / 3) {
+            write(now);
+        }
+    }
+
+    /**
+     * Removes the lease file if this machine holds the lease or is waiting
+     * for it, so other machines don't have to wait for it to expire.
+     */
+    public void release() {
+        if (written == null) {
+            return;
+        }
+
+        try {
+            if (written.sameAs(read())) {
+                backend.delete(path);
+            }
+        } catch (IOException e) {
+            // om nom nom!
+        }
+        written = null;
+        writtenAt = 0;
+        settled = false;
+    }
+
+    /**
+     * Reads the lease file.
+     * 
+     * @return The lease, or null if there is no lease file or it can't be
+     *         parsed.
+     * @throws IOException
+     */
+    private Lease read() throws IOException {
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(backend.read(path), UTF8));
+
+            if (!HEADER.equals(reader.readLine())) {
+                return null;
+            }
+
+            String line = reader.readLine();
+            String[] fields = line == null ? new String[0] : line.split("\t");
+            if (fields.length != 3) {
+                return null;
+            }
+            return new Lease(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            FileUtil.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Writes this machine's lease with a new heartbeat.
+     */
+    private void write(long now) throws IOException {
+        lastHeartbeat = Math.max(now, lastHeartbeat + 1);
+        Lease lease = new Lease(machineId, lastHeartbeat, DURATION);
+        StorageOutputStream out = backend.write(path);
+
+        try {
+            Writer writer = new OutputStreamWriter(out, UTF8);
+            writer.write(HEADER + "\n");
+            writer.write(lease.machineId + "\t" + lease.heartbeat + "\t" + lease.duration + "\n");
+
+            writer.flush();
+            out.commit();
+        } finally {
+            FileUtil.closeQuietly(out);
+        }
+
+        written = lease;
+        writtenAt = now;
+    }
+}
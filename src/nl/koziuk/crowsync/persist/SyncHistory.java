@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.persist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nl.koziuk.crowsync.util.FileUtil;
+
+/**
+ * Remembers, for every save file of every game, the version in the sync
+ * folder that this machine last agreed with, and the size and modification
+ * time the local save had at that moment. Comparing both sides with this
+ * record shows which side has changed since, without comparing the clocks
+ * of different machines or reading any file.
+ * 
+ * The history is local to a machine and stored as a small binary file.
+ * 
+ * @author marcin
+ */
+public class SyncHistory {
+    private static final int MAGIC = 0x43535348; // "CSSH"
+    private static final int VERSION = 1;
+
+    /**
+     * The state of a save file after it was last synchronized.
+     */
+    public static class Record {
+        private final Version version;
+        private final long size;
+        private final long lastModified;
+
+        /**
+         * Creates a record.
+         * 
+         * @param version The version in the sync folder, or null if it is not
+         *            known.
+         * @param size The size of the local save.
+         * @param lastModified The modification time of the local save.
+         */
+        public Record(Version version, long size, long lastModified) {
+            this.version = version;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public Version getVersion() {
+            return version;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns whether a local save has changed since it was recorded.
+         * 
+         * @param saveEntry The entry of the local save.
+         * @return True if its size or modification time differ.
+         */
+        public boolean isChanged(FileEntry saveEntry) {
+            return saveEntry.getSize() != size || saveEntry.getLastModified() != lastModified;
+        }
+
+        boolean sameAs(Record other) {
+            return size == other.size && lastModified == other.lastModified
+                    && (version == null ? other.version == null : version.equals(other.version));
+        }
+    }
+
+    private final File file;
+
+    // by game name, then by file name
+    private final ConcurrentHashMap<String, Map<String, Record>> games =
+            new ConcurrentHashMap<String, Map<String, Record>>();
+
+    private volatile boolean dirty = false;
+
+    /**
+     * Creates an empty history. Nothing is read yet.
+     * 
+     * @param file The history file.
+     */
+    public SyncHistory(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the history file, replacing all records. A missing or damaged
+     * file results in an empty history, after which every file is compared
+     * by modification time once.
+     */
+    public void load() {
+        DataInputStream in = null;
+
+        games.clear();
+        dirty = false;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+
+            int gameCount = in.readInt();
+            for (int i = 0; i < gameCount; i++) {
+                Map<String, Record> records = recordsOf(in.readUTF());
+
+                int count = in.readInt();
+                for (int j = 0; j < count; j++) {
+                    String name = in.readUTF();
+                    Version version = in.readBoolean() ? new Version(in.readUTF(), in.readLong()) : null;
+                    long size = in.readLong();
+                    long lastModified = in.readLong();
+
+                    records.put(name, new Record(version, size, lastModified));
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // nothing synchronized yet
+        } catch (IOException e) {
+            games.clear();
+        } finally {
+            FileUtil.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the history to a temporary file and then moves it over the
+     * history file, if anything has changed since it was read or written.
+     * 
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+
+        File tempFile = FileUtil.tempFileFor(file);
+        FileOutputStream fout = null;
+        DataOutputStream out = null;
+        boolean done = false;
+
+        try {
+            fout = new FileOutputStream(tempFile);
+            out = new DataOutputStream(new BufferedOutputStream(fout));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(games.size());
+
+            for (Map.Entry<String, Map<String, Record>> game : games.entrySet()) {
+                // a copy, so the count matches even if a worker adds a record
+                Map<String, Record> records = new TreeMap<String, Record>(game.getValue());
+                out.writeUTF(game.getKey());
+                out.writeInt(records.size());
+
+                for (Map.Entry<String, Record> entry : records.entrySet()) {
+                    Record record = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeBoolean(record.version != null);
+                    if (record.version != null) {
+                        out.writeUTF(record.version.getMachineId());
+                        out.writeLong(record.version.getCounter());
+                    }
+                    out.writeLong(record.size);
+                    out.writeLong(record.lastModified);
+                }
+            }
+
+            out.flush();
+            FileUtil.forceToDisk(fout);
+            out.close();
+            out = null;
+            done = true;
+        } finally {
+            FileUtil.closeQuietly(out);
+            FileUtil.closeQuietly(fout);
+
+            if (!done) {
+                tempFile.delete();
+                dirty = true;
+            }
+        }
+
+        FileUtil.moveAtomically(tempFile, file);
+    }
+
+    /**
+     * Returns the records of a game.
+     * 
+     * @param game The name of the game.
+     * @return An unmodifiable view of the records, by file name.
+     */
+    public Map<String, Record> getRecords(String game) {
+        Map<String, Record> records = games.get(game);
+        return records == null ? Collections.<String, Record> emptyMap() : Collections.unmodifiableMap(records);
+    }
+
+    /**
+     * Records the state of a save file after synchronizing it.
+     * 
+     * @param game The name of the game.
+     * @param name The name of the save file.
+     * @param record The record.
+     */
+    public void put(String game, String name, Record record) {
+        Record old = recordsOf(game).put(name, record);
+        if (old == null || !old.sameAs(record)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forgets a save file, so that it is compared by modification time again.
+     * 
+     * @param game The name of the game.
+     * @param name The name of the save file.
+     */
+    public void remove(String game, String name) {
+        Map<String, Record> records = games.get(game);
+        if (records != null && records.remove(name) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forgets the save files of a game that exist on neither side any more.
+     * 
+     * @param game The name of the game.
+     * @param names The names of the files that still exist.
+     */
+    public void retain(String game, Set<String> names) {
+        Map<String, Record> records = games.get(game);
+        if (records == null) {
+            return;
+        }
+
+        for (Iterator<String> it = records.keySet().iterator(); it.hasNext();) {
+            if (!names.contains(it.next())) {
+                it.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    private Map<String, Record> recordsOf(String game) {
+        Map<String, Record> records = games.get(game);
+
+        if (records == null) {
+            records = new ConcurrentHashMap<String, Record>();
+            Map<String, Record> existing = games.putIfAbsent(game, records);
+            if (existing != null) {
+                records = existing;
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.persist;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import nl.koziuk.crowsync.storage.StorageBackend;
+import nl.koziuk.crowsync.storage.StorageOutputStream;
+import nl.koziuk.crowsync.storage.StoragePath;
+import nl.koziuk.crowsync.util.FileUtil;
+import nl.koziuk.crowsync.util.HashUtil;
+
+/**
+ * The manifest of a game's directory in the sync folder. It lists the name,
+ * size, modification time, content hash and version of every save file in
+ * that directory, so that the directory itself does not have to be listed
+ * and every file does not have to be stat'ed.
+ * 
+ * Every line describes one file, with a dash if the version is not known:
+ * 
+ * <pre>
+ * size TAB lastModified TAB hash TAB version TAB name
+ * </pre>
+ * 
+ * Manifests of the first format, which have no version field, can still be
+ * read.
+ * 
+ * The manifest is always replaced atomically by the machine that writes it.
+ * 
+ * @author marcin
+ */
+public class SyncManifest {
+    public static final String FILENAME = ".crowsync-manifest";
+
+    private static final String HEADER = "# CrowSync manifest 2";
+    private static final String HEADER_V1 = "# CrowSync manifest 1";
+    private static final String NO_VERSION = "-";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final StorageBackend backend;
+    private final String path;
+
+    private final Map<String, FileEntry> entries = new TreeMap<String, FileEntry>();
+
+    // size and modification time of the manifest file when it was last read
+    // or written
+    private long fileSize = -1;
+    private long fileModified = -1;
+
+    /**
+     * Creates an empty manifest for a directory. Nothing is read yet.
+     * 
+     * @param backend The storage of the sync folder.
+     * @param dir The game's directory in the sync folder.
+     */
+    public SyncManifest(StorageBackend backend, String dir) {
+        this.backend = backend;
+        this.path = StoragePath.join(dir, FILENAME);
+    }
+
+    /**
+     * Returns whether a file name is that of a manifest.
+     * 
+     * @param name The file name.
+     * @return True if it is a manifest.
+     */
+    public static boolean isManifest(String name) {
+        return FILENAME.equals(name);
+    }
+
+    /**
+     * Returns whether the manifest file exists.
+     * 
+     * @return True if it exists.
+     * @throws IOException
+     */
+    public boolean exists() throws IOException {
+        return backend.stat(path) != null;
+    }
+
+    /**
+     * Returns whether the manifest file has been changed since it was last
+     * read or written, for example by another machine. This costs a single
+     * stat of the manifest file.
+     * 
+     * @return True if the file needs to be read again.
+     * @throws IOException
+     */
+    public boolean isStale() throws IOException {
+        FileEntry attributes = backend.stat(path);
+        long size = attributes == null ? 0 : attributes.getSize();
+        long modified = attributes == null ? 0 : attributes.getLastModified();
+
+        return size != fileSize || modified != fileModified;
+    }
+
+    /**
+     * Reads the manifest file, replacing all entries.
+     * 
+     * @return False if there is no manifest file.
+     * @throws IOException
+     */
+    public boolean load() throws IOException {
+        InputStream in = null;
+
+        try {
+            FileEntry attributes = backend.stat(path);
+            if (attributes == null) {
+                throw new FileNotFoundException(path);
+            }
+
+            in = backend.read(path);
+            parse(in);
+
+            fileSize = attributes.getSize();
+            fileModified = attributes.getLastModified();
+            return true;
+        } catch (FileNotFoundException e) {
+            entries.clear();
+            fileSize = -1;
+            fileModified = -1;
+            return false;
+        } finally {
+            FileUtil.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Replaces the manifest file atomically, so other machines never see a
+     * half-written manifest.
+     * 
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        StorageOutputStream out = backend.write(path);
+
+        try {
+            Writer writer = new OutputStreamWriter(out, UTF8);
+            writer.write(HEADER + "\n");
+
+            for (FileEntry entry : entries.values()) {
+                Version version = entry.getVersion();
+                writer.write(entry.getSize() + "\t" + entry.getLastModified() + "\t" + HashUtil.toHex(entry.getHash())
+                        + "\t" + (version == null ? NO_VERSION : version.toString()) + "\t" + entry.getName() + "\n");
+            }
+
+            writer.flush();
+            out.commit();
+        } finally {
+            FileUtil.closeQuietly(out);
+        }
+
+        FileEntry attributes = backend.stat(path);
+        fileSize = attributes == null ? -1 : attributes.getSize();
+        fileModified = attributes == null ? -1 : attributes.getLastModified();
+    }
+
+    /**
+     * Returns the entries, by file name.
+     * 
+     * @return An unmodifiable view of the entries.
+     */
+    public Map<String, FileEntry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Returns the entry of a file.
+     * 
+     * @param name The file name.
+     * @return The entry, or null.
+     */
+    public FileEntry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Adds or replaces an entry.
+     * 
+     * @param entry The entry.
+     */
+    public void put(FileEntry entry) {
+        entries.put(entry.getName(), entry);
+    }
+
+    /**
+     * Removes an entry.
+     * 
+     * @param name The file name.
+     * @return Whether there was such an entry.
+     */
+    public boolean remove(String name) {
+        return entries.remove(name) != null;
+    }
+
+    /**
+     * Parses the manifest. Lines that can't be parsed are skipped.
+     * 
+     * @param in The input stream.
+     * @throws IOException
+     */
+    private void parse(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF8));
+        String line;
+        int count = 5;
+
+        entries.clear();
+
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("#")) {
+                if (HEADER_V1.equals(line)) {
+                    count = 4;
+                }
+                continue;
+            }
+
+            String[] fields = line.split("\t", count);
+            if (fields.length == count) {
+                try {
+                    long size = Long.parseLong(fields[0]);
+                    long modified = Long.parseLong(fields[1]);
+                    long hash = HashUtil.fromHex(fields[2]);
+                    Version version = count == 5 ? Version.parse(fields[3]) : null;
+
+                    put(new FileEntry(fields[count - 1], size, modified, hash, version));
+                } catch (NumberFormatException e) {
+                    // swallow
+                }
+            }
+        }
+    }
+}
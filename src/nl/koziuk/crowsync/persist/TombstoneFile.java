@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.persist;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import nl.koziuk.crowsync.storage.StorageBackend;
+import nl.koziuk.crowsync.storage.StorageOutputStream;
+import nl.koziuk.crowsync.storage.StoragePath;
+import nl.koziuk.crowsync.util.FileUtil;
+
+/**
+ * The save files that were removed from a game's directory in the sync
+ * folder, because they were no longer among the newest saves. Other machines
+ * still have those saves locally; the tombstones keep them from sending the
+ * saves back. Every line describes one removed save:
+ * 
+ * <pre>
+ * deleteTime TAB machineId TAB name
+ * </pre>
+ * 
+ * The file is shared by all machines. Before it is written, the tombstones
+ * that other machines have added in the meantime are merged in. Tombstones
+ * are dropped after the retention period.
+ * 
+ * @author marcin
+ */
+public class TombstoneFile {
+    public static final String FILENAME = ".crowsync-tombstones";
+
+    private static final String HEADER = "# CrowSync tombstones 1";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final long RETENTION_PERIOD = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * A removed save file.
+     */
+    public static class Tombstone {
+        private final String name;
+        private final long deleteTime;
+        private final String machineId;
+
+        public Tombstone(String name, long deleteTime, String machineId) {
+            this.name = name;
+            this.deleteTime = deleteTime;
+            this.machineId = machineId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getDeleteTime() {
+            return deleteTime;
+        }
+
+        public String getMachineId() {
+            return machineId;
+        }
+    }
+
+    private final StorageBackend backend;
+    private final String path;
+
+    private final Map<String, Tombstone> tombstones = new TreeMap<String, Tombstone>();
+
+    // names of which this machine has removed the tombstone since the file
+    // was last written, so they are not merged back in
+    private final Set<String> revived = new HashSet<String>();
+
+    private long fileSize = -1;
+    private long fileModified = -1;
+
+    /**
+     * Creates an empty tombstone file for a directory. Nothing is read yet.
+     * 
+     * @param backend The storage of the sync folder.
+     * @param dir The game's directory in the sync folder.
+     */
+    public TombstoneFile(StorageBackend backend, String dir) {
+        this.backend = backend;
+        this.path = StoragePath.join(dir, FILENAME);
+    }
+
+    /**
+     * Returns whether a file name is that of a tombstone file.
+     * 
+     * @param name The file name.
+     * @return True if it is a tombstone file.
+     */
+    public static boolean isTombstoneFile(String name) {
+        return FILENAME.equals(name);
+    }
+
+    /**
+     * Returns whether the file has been changed since it was last read or
+     * written.
+     * 
+     * @return True if the file needs to be read again.
+     * @throws IOException
+     */
+    public boolean isStale() throws IOException {
+        FileEntry attributes = backend.stat(path);
+        long size = attributes == null ? 0 : attributes.getSize();
+        long modified = attributes == null ? 0 : attributes.getLastModified();
+
+        return size != fileSize || modified != fileModified;
+    }
+
+    /**
+     * Reads the file, replacing all tombstones. A missing file means there
+     * are no tombstones.
+     * 
+     * @throws IOException
+     */
+    public void load() throws IOException {
+        FileEntry attributes = backend.stat(path);
+
+        tombstones.clear();
+        tombstones.putAll(read());
+        revived.clear();
+        remember(attributes);
+    }
+
+    /**
+     * Merges in the tombstones other machines have added, drops the expired
+     * ones and replaces the file atomically.
+     * 
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        for (Tombstone other : read().values()) {
+            Tombstone own = tombstones.get(other.getName());
+
+            if (own == null ? !revived.contains(other.getName()) : other.getDeleteTime() > own.getDeleteTime()) {
+                tombstones.put(other.getName(), other);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (Iterator<Tombstone> it = tombstones.values().iterator(); it.hasNext();) {
+            if (now - it.next().getDeleteTime() > RETENTION_PERIOD) {
+                it.remove();
+            }
+        }
+
+        if (tombstones.isEmpty()) {
+            backend.delete(path);
+        } else {
+            write();
+        }
+
+        revived.clear();
+        remember(backend.stat(path));
+    }
+
+    /**
+     * Returns the tombstones, by file name.
+     * 
+     * @return An unmodifiable view of the tombstones.
+     */
+    public Map<String, Tombstone> getTombstones() {
+        return Collections.unmodifiableMap(tombstones);
+    }
+
+    /**
+     * Records that a save file has been removed.
+     * 
+     * @param tombstone The tombstone.
+     */
+    public void put(Tombstone tombstone) {
+        tombstones.put(tombstone.getName(), tombstone);
+        revived.remove(tombstone.getName());
+    }
+
+    /**
+     * Removes the tombstone of a save file that has been written again.
+     * 
+     * @param name The file name.
+     * @return Whether there was such a tombstone.
+     */
+    public boolean remove(String name) {
+        if (tombstones.remove(name) != null) {
+            revived.add(name);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remembers the size and modification time of the file as it was read
+     * or written, 0 if it doesn't exist.
+     */
+    private void remember(FileEntry attributes) {
+        fileSize = attributes == null ? 0 : attributes.getSize();
+        fileModified = attributes == null ? 0 : attributes.getLastModified();
+    }
+
+    private Map<String, Tombstone> read() throws IOException {
+        Map<String, Tombstone> result = new TreeMap<String, Tombstone>();
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(backend.read(path), UTF8));
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t", 3);
+                if (fields.length == 3) {
+                    try {
+                        result.put(fields[2], new Tombstone(fields[2], Long.parseLong(fields[0]), fields[1]));
+                    } catch (NumberFormatException e) {
+                        // swallow
+                    }
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // no tombstones yet
+        } finally {
+            FileUtil.closeQuietly(reader);
+        }
+
+        return result;
+    }
+
+    private void write() throws IOException {
+        StorageOutputStream out = backend.write(path);
+
+        try {
+            Writer writer = new OutputStreamWriter(out, UTF8);
+            writer.write(HEADER + "\n");
+
+            for (Tombstone tombstone : tombstones.values()) {
+                writer.write(tombstone.getDeleteTime() + "\t" + tombstone.getMachineId() + "\t" + tombstone.getName()
+                        + "\n");
+            }
+
+            writer.flush();
+            out.commit();
+        } finally {
+            FileUtil.closeQuietly(out);
+        }
+    }
+}
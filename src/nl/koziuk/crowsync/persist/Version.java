@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.persist;
+
+/**
+ * The version of a save file in the sync folder: the machine that sent it,
+ * and a counter that is higher than that of every version the machine had
+ * seen of the file. Two versions are the same only if both are equal, so
+ * versions written by different machines never collide, and comparing them
+ * does not depend on their clocks.
+ * 
+ * @author marcin
+ */
+public class Version {
+    private final String machineId;
+    private final long counter;
+
+    /**
+     * Creates a version.
+     * 
+     * @param machineId The ID of the machine that wrote it.
+     * @param counter The counter.
+     */
+    public Version(String machineId, long counter) {
+        this.machineId = machineId;
+        this.counter = counter;
+    }
+
+    /**
+     * Parses a version as written by toString().
+     * 
+     * @param string The string.
+     * @return The version, or null if the string is not a version.
+     */
+    public static Version parse(String string) {
+        int separator = string.lastIndexOf(':');
+
+        if (separator <= 0) {
+            return null;
+        }
+
+        try {
+            return new Version(string.substring(0, separator), Long.parseLong(string.substring(separator + 1)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the version this machine writes after having seen other
+     * versions of a file.
+     * 
+     * @param machineId The ID of this machine.
+     * @param seen The versions that were seen, each of which may be null.
+     * @return The new version.
+     */
+    public static Version next(String machineId, Version... seen) {
+        long counter = 0;
+
+        for (Version version : seen) {
+            if (version != null) {
+                counter = Math.max(counter, version.counter);
+            }
+        }
+        return new Version(machineId, counter + 1);
+    }
+
+    /**
+     * Returns the ID of the machine that wrote this version.
+     * 
+     * @return The machine ID.
+     */
+    public String getMachineId() {
+        return machineId;
+    }
+
+    /**
+     * Returns the counter.
+     * 
+     * @return The counter.
+     */
+    public long getCounter() {
+        return counter;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Version)) {
+            return false;
+        }
+
+        Version other = (Version) obj;
+        return counter == other.counter && machineId.equals(other.machineId);
+    }
+
+    @Override
+    public int hashCode() {
+        return machineId.hashCode() * 31 + (int) (counter ^ (counter >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return machineId + ":" + counter;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import nl.koziuk.crowsync.util.FileUtil;
+import nl.koziuk.crowsync.util.OwnChanges;
+
+/**
+ * Stores the sync folder in a local directory, usually one that a cloud
+ * client keeps in sync. Files are written through FileUtil, so they are made
+ * durable as the Durability mode says, and they can be copied and watched
+ * directly.
+ * 
+ * @author marcin
+ */
+public class LocalBackend extends PathBackend {
+    private final File root;
+
+    /**
+     * Creates a backend.
+     * 
+     * @param root The sync folder.
+     */
+    public LocalBackend(File root) {
+        super(root.toPath());
+        this.root = root;
+    }
+
+    @Override
+    public String toDisplayPath(String path) {
+        return toLocalFile(path).getAbsolutePath();
+    }
+
+    @Override
+    public File toLocalFile(String path) {
+        return path.isEmpty() ? root : new File(root, path.replace('/', File.separatorChar));
+    }
+
+    @Override
+    public StorageOutputStream write(String path) throws IOException {
+        final File file = toLocalFile(path);
+        final File tempFile = FileUtil.tempFileFor(file);
+        final FileOutputStream out = new FileOutputStream(tempFile);
+
+        return new StorageOutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void commit(long lastModified) throws IOException {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+
+                closed = true;
+                boolean done = false;
+
+                try {
+                    FileUtil.forceToDisk(out);
+                    out.close();
+                    if (lastModified != 0 && !tempFile.setLastModified(lastModified)) {
+                        throw new IOException("Could not set the modification time of " + tempFile);
+                    }
+                    FileUtil.moveAtomically(tempFile, file);
+                    done = true;
+                } finally {
+                    if (!done) {
+                        FileUtil.closeQuietly(out);
+                        tempFile.delete();
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    FileUtil.closeQuietly(out);
+                    tempFile.delete();
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean setLastModified(String path, long lastModified) {
+        File file = toLocalFile(path);
+        OwnChanges.touching(file, lastModified);
+        return file.setLastModified(lastModified);
+    }
+
+    @Override
+    public boolean delete(String path) {
+        File file = toLocalFile(path);
+        OwnChanges.deleting(file);
+        return file.delete();
+    }
+}
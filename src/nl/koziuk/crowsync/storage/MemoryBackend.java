@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import nl.koziuk.crowsync.persist.FileEntry;
+
+/**
+ * Keeps the sync folder in memory, for tests and for measuring the
+ * synchronizer without disk and cloud client getting in the way. Nothing is
+ * kept after the backend is closed.
+ * 
+ * @author marcin
+ */
+public class MemoryBackend implements StorageBackend {
+
+    /**
+     * The contents of a file.
+     */
+    private static class Stored {
+        final byte[] data;
+        volatile long lastModified;
+
+        Stored(byte[] data, long lastModified) {
+            this.data = data;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final ConcurrentNavigableMap<String, Stored> files = new ConcurrentSkipListMap<String, Stored>();
+    private final NavigableSet<String> dirs = new ConcurrentSkipListSet<String>();
+
+    /**
+     * Creates an empty backend.
+     */
+    public MemoryBackend() {
+        dirs.add("");
+    }
+
+    @Override
+    public String toDisplayPath(String path) {
+        return "memory:/" + path;
+    }
+
+    @Override
+    public File toLocalFile(String path) {
+        return null;
+    }
+
+    @Override
+    public List<FileEntry> list(String dir) {
+        if (!dirs.contains(dir)) {
+            return null;
+        }
+
+        List<FileEntry> entries = new ArrayList<FileEntry>();
+        for (String path : children(files.navigableKeySet(), dir)) {
+            FileEntry entry = stat(path);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public List<String> listDirectories(String dir) {
+        if (!dirs.contains(dir)) {
+            return null;
+        }
+
+        List<String> names = new ArrayList<String>();
+        for (String path : children(dirs, dir)) {
+            names.add(StoragePath.nameOf(path));
+        }
+        return names;
+    }
+
+    @Override
+    public FileEntry stat(String path) {
+        Stored stored = files.get(path);
+
+        if (stored == null) {
+            return null;
+        }
+        return new FileEntry(StoragePath.nameOf(path), stored.data.length, stored.lastModified, FileEntry.NO_HASH);
+    }
+
+    @Override
+    public boolean isDirectory(String path) {
+        return dirs.contains(path);
+    }
+
+    @Override
+    public void makeDirectory(String path) {
+        for (String dir = path; !dir.isEmpty(); dir = StoragePath.parentOf(dir)) {
+            dirs.add(dir);
+        }
+    }
+
+    @Override
+    public InputStream read(String path) throws IOException {
+        Stored stored = files.get(path);
+
+        if (stored == null) {
+            throw new FileNotFoundException(toDisplayPath(path));
+        }
+        return new ByteArrayInputStream(stored.data);
+    }
+
+    @Override
+    public StorageOutputStream write(final String path) throws IOException {
+        if (!dirs.contains(StoragePath.parentOf(path))) {
+            throw new FileNotFoundException(toDisplayPath(path));
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        return new StorageOutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void commit(long lastModified) throws IOException {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+
+                closed = true;
+                files.put(path, new Stored(out.toByteArray(), lastModified != 0 ? lastModified : System
+                        .currentTimeMillis()));
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+            }
+        };
+    }
+
+    @Override
+    public boolean setLastModified(String path, long lastModified) {
+        Stored stored = files.get(path);
+
+        if (stored == null) {
+            return false;
+        }
+        stored.lastModified = lastModified;
+        return true;
+    }
+
+    @Override
+    public boolean delete(String path) {
+        return files.remove(path) != null;
+    }
+
+    @Override
+    public void deleteAll(Collection<String> paths) {
+        files.keySet().removeAll(paths);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+        files.clear();
+        dirs.clear();
+    }
+
+    /**
+     * Returns the paths that are directly in a directory.
+     */
+    private static List<String> children(NavigableSet<String> paths, String dir) {
+        List<String> result = new ArrayList<String>();
+        String prefix = dir.isEmpty() ? "" : dir + "/";
+
+        for (String path : paths.tailSet(prefix, false)) {
+            if (!path.startsWith(prefix)) {
+                break;
+            }
+            if (path.indexOf('/', prefix.length()) < 0) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+}
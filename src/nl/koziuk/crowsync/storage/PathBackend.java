@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import nl.koziuk.crowsync.persist.FileEntry;
+import nl.koziuk.crowsync.util.FileUtil;
+
+/**
+ * Stores the sync folder in a directory of any java.nio file system, such as
+ * a zip file system. Directories are listed with their attributes in a
+ * single pass. Files are written to a temporary file next to them, which is
+ * then moved over the file.
+ * 
+ * @author marcin
+ */
+public class PathBackend implements StorageBackend {
+    private volatile Path root;
+
+    /**
+     * Creates a backend.
+     * 
+     * @param root The directory that holds the sync folder.
+     */
+    public PathBackend(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Returns the directory that holds the sync folder.
+     * 
+     * @return The root directory.
+     */
+    protected Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Changes the directory that holds the sync folder, for backends that
+     * have to reopen their file system.
+     * 
+     * @param root The new root directory.
+     */
+    protected void setRoot(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Returns the java.nio path of a path.
+     * 
+     * @param path The path in the sync folder.
+     * @return The path in the file system.
+     */
+    protected Path resolve(String path) {
+        Path root = this.root;
+        return path.isEmpty() ? root : root.resolve(path);
+    }
+
+    @Override
+    public String toDisplayPath(String path) {
+        return resolve(path).toUri().toString();
+    }
+
+    @Override
+    public File toLocalFile(String path) {
+        return null;
+    }
+
+    @Override
+    public List<FileEntry> list(String dir) throws IOException {
+        List<FileEntry> entries = new ArrayList<FileEntry>();
+        DirectoryStream<Path> stream = open(dir);
+
+        if (stream == null) {
+            return null;
+        }
+
+        try {
+            for (Path file : stream) {
+                BasicFileAttributes attributes = readAttributes(file);
+
+                if (attributes != null && attributes.isRegularFile()) {
+                    entries.add(new FileEntry(file.getFileName().toString(), attributes.size(), attributes
+                            .lastModifiedTime().toMillis(), FileEntry.NO_HASH));
+                }
+            }
+        } finally {
+            FileUtil.closeQuietly(stream);
+        }
+        return entries;
+    }
+
+    @Override
+    public List<String> listDirectories(String dir) throws IOException {
+        List<String> names = new ArrayList<String>();
+        DirectoryStream<Path> stream = open(dir);
+
+        if (stream == null) {
+            return null;
+        }
+
+        try {
+            for (Path file : stream) {
+                BasicFileAttributes attributes = readAttributes(file);
+
+                if (attributes != null && attributes.isDirectory()) {
+                    names.add(file.getFileName().toString());
+                }
+            }
+        } finally {
+            FileUtil.closeQuietly(stream);
+        }
+        return names;
+    }
+
+    @Override
+    public FileEntry stat(String path) throws IOException {
+        BasicFileAttributes attributes = readAttributes(resolve(path));
+
+        if (attributes == null || !attributes.isRegularFile()) {
+            return null;
+        }
+        return new FileEntry(StoragePath.nameOf(path), attributes.size(), attributes.lastModifiedTime().toMillis(),
+                FileEntry.NO_HASH);
+    }
+
+    @Override
+    public boolean isDirectory(String path) {
+        return Files.isDirectory(resolve(path));
+    }
+
+    @Override
+    public void makeDirectory(String path) throws IOException {
+        Files.createDirectories(resolve(path));
+    }
+
+    @Override
+    public InputStream read(String path) throws IOException {
+        try {
+            return Files.newInputStream(resolve(path));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(toDisplayPath(path));
+        }
+    }
+
+    @Override
+    public StorageOutputStream write(String path) throws IOException {
+        final Path file = resolve(path);
+        final Path tempFile = file.resolveSibling(FileUtil.tempNameFor(StoragePath.nameOf(path)));
+        final OutputStream out;
+
+        try {
+            out = Files.newOutputStream(tempFile);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(toDisplayPath(path));
+        }
+
+        return new StorageOutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void commit(long lastModified) throws IOException {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+
+                closed = true;
+                boolean done = false;
+
+                try {
+                    out.close();
+
+                    // some file systems, like the zip file system, only replace
+                    // an existing file when asked to, and don't keep the
+                    // modification time when moving
+                    try {
+                        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE,
+                                StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    done = true;
+
+                    if (lastModified != 0) {
+                        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+                    }
+                } finally {
+                    if (!done) {
+                        Files.deleteIfExists(tempFile);
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    FileUtil.closeQuietly(out);
+                    Files.deleteIfExists(tempFile);
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean setLastModified(String path, long lastModified) throws IOException {
+        try {
+            Files.setLastModifiedTime(resolve(path), FileTime.fromMillis(lastModified));
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean delete(String path) throws IOException {
+        return Files.deleteIfExists(resolve(path));
+    }
+
+    @Override
+    public void deleteAll(Collection<String> paths) throws IOException {
+        for (String path : paths) {
+            delete(path);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Opens a directory for listing.
+     * 
+     * @return The stream, or null if the directory doesn't exist.
+     */
+    private DirectoryStream<Path> open(String dir) throws IOException {
+        try {
+            return Files.newDirectoryStream(resolve(dir));
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the attributes of a file, which are usually already known from
+     * listing its directory.
+     * 
+     * @return The attributes, or null if the file doesn't exist any more.
+     */
+    private static BasicFileAttributes readAttributes(Path file) throws IOException {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+
+import nl.koziuk.crowsync.persist.FileEntry;
+
+/**
+ * The storage that holds the sync folder, such as a local directory or a
+ * single archive. Files are addressed by paths relative to the root of the
+ * sync folder, with '/' between names and "" for the root itself; see
+ * StoragePath.
+ * 
+ * Files are always replaced atomically: a StorageOutputStream only becomes
+ * visible under its path when it is committed. Backends may batch changes
+ * until flush() is called. Implementations must be safe to use from
+ * multiple threads.
+ * 
+ * @author marcin
+ */
+public interface StorageBackend extends Closeable {
+
+    /**
+     * Returns a description of a path for messages and the log.
+     * 
+     * @param path The path.
+     * @return A readable name, such as an absolute file name.
+     */
+    public String toDisplayPath(String path);
+
+    /**
+     * Returns the local file at a path, for backends that store files in a
+     * local directory, so they can be copied and watched directly.
+     * 
+     * @param path The path.
+     * @return The file, or null if the backend doesn't store local files.
+     */
+    public File toLocalFile(String path);
+
+    /**
+     * Lists the files in a directory with their size and modification time,
+     * in a single call.
+     * 
+     * @param dir The directory.
+     * @return The entries of the files, without directories and without
+     *         content hashes, or null if the directory doesn't exist.
+     * @throws IOException
+     */
+    public List<FileEntry> list(String dir) throws IOException;
+
+    /**
+     * Lists the directories in a directory.
+     * 
+     * @param dir The directory.
+     * @return The names of the directories, or null if the directory doesn't
+     *         exist.
+     * @throws IOException
+     */
+    public List<String> listDirectories(String dir) throws IOException;
+
+    /**
+     * Returns the size and modification time of a file.
+     * 
+     * @param path The file.
+     * @return The entry, without content hash, or null if there is no such
+     *         file.
+     * @throws IOException
+     */
+    public FileEntry stat(String path) throws IOException;
+
+    /**
+     * Returns whether a directory exists.
+     * 
+     * @param path The directory.
+     * @return True if it exists.
+     * @throws IOException
+     */
+    public boolean isDirectory(String path) throws IOException;
+
+    /**
+     * Makes a directory and its parents, if they don't exist yet.
+     * 
+     * @param path The directory.
+     * @throws IOException If the directory doesn't exist afterwards.
+     */
+    public void makeDirectory(String path) throws IOException;
+
+    /**
+     * Opens a file for reading.
+     * 
+     * @param path The file.
+     * @return The stream.
+     * @throws java.io.FileNotFoundException If there is no such file.
+     * @throws IOException
+     */
+    public InputStream read(String path) throws IOException;
+
+    /**
+     * Opens a file for writing. Its directory must exist. Nothing is visible
+     * until the stream is committed, and closing it without committing
+     * discards everything.
+     * 
+     * @param path The file.
+     * @return The stream.
+     * @throws IOException
+     */
+    public StorageOutputStream write(String path) throws IOException;
+
+    /**
+     * Changes the modification time of a file.
+     * 
+     * @param path The file.
+     * @param lastModified The modification time in milliseconds.
+     * @return False if there is no such file.
+     * @throws IOException
+     */
+    public boolean setLastModified(String path, long lastModified) throws IOException;
+
+    /**
+     * Removes a file.
+     * 
+     * @param path The file.
+     * @return False if there was no such file.
+     * @throws IOException
+     */
+    public boolean delete(String path) throws IOException;
+
+    /**
+     * Removes a number of files at once. Files that don't exist are skipped.
+     * 
+     * @param paths The files.
+     * @throws IOException
+     */
+    public void deleteAll(Collection<String> paths) throws IOException;
+
+    /**
+     * Makes all changes so far durable, for backends that batch them.
+     * 
+     * @throws IOException
+     */
+    public void flush() throws IOException;
+
+    /**
+     * Flushes and releases the storage. It can't be used afterwards.
+     * 
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException;
+}
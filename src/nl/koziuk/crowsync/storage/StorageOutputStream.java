@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A file being written to a StorageBackend. The data only replaces the file
+ * when the stream is committed; closing it without committing discards the
+ * data, so it can always be closed in a finally block:
+ * 
+ * <pre>
+ * StorageOutputStream out = backend.write(path);
+ * try {
+ *     ...
+ *     out.commit();
+ * } finally {
+ *     out.close();
+ * }
+ * </pre>
+ * 
+ * @author marcin
+ */
+public abstract class StorageOutputStream extends OutputStream {
+
+    /**
+     * Replaces the file with the written data, which gets the current time as
+     * its modification time. The stream is closed.
+     * 
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        commit(0);
+    }
+
+    /**
+     * Replaces the file with the written data. The stream is closed.
+     * 
+     * @param lastModified The modification time of the file, or 0 for the
+     *            current time.
+     * @throws IOException
+     */
+    public abstract void commit(long lastModified) throws IOException;
+
+    /**
+     * Closes the stream. If it wasn't committed, the data is discarded.
+     */
+    @Override
+    public abstract void close() throws IOException;
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the whole sync folder in a single zip archive, through the zip file
+ * system. A cloud client then only has to upload a single file, which never
+ * contains half of a scan's changes. The zip file system keeps changes in
+ * temporary files until it is closed, so flush() closes the archive, which
+ * writes it anew and renames it over the old one, and opens it again. It
+ * must not be called while other threads use the backend.
+ * 
+ * The archive is rewritten from what it was like when it was opened, so
+ * changes made by another machine in the meantime would be lost, and the
+ * leases and generations inside it can't prevent that. An archive may
+ * therefore only be written by a single machine. If the archive has been
+ * replaced since it was opened and there are changes to write, flush() and
+ * close() refuse to write it. Without changes, flush() just opens the new
+ * archive, so other machines may still read it.
+ * 
+ * @author marcin
+ */
+public class ZipBackend extends PathBackend {
+    public static final String ARCHIVE_NAME = "crowsync-saves.zip";
+
+    private final File archive;
+
+    // what the archive was like when it was opened, to notice that another
+    // machine has replaced it since
+    private long openedSize;
+    private long openedLastModified;
+
+    // whether anything was changed since the archive was opened
+    private volatile boolean changed = false;
+
+    /**
+     * Opens an archive, creating it if it doesn't exist.
+     * 
+     * @param archive The zip file.
+     * @throws IOException If the archive can't be opened.
+     */
+    public ZipBackend(File archive) throws IOException {
+        super(open(archive));
+        this.archive = archive;
+        openedSize = archive.length();
+        openedLastModified = archive.lastModified();
+    }
+
+    private static Path open(File archive) throws IOException {
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("create", "true");
+
+        FileSystem fileSystem = FileSystems.newFileSystem(URI.create("jar:" + archive.toURI()), env);
+        return fileSystem.getPath("/");
+    }
+
+    @Override
+    public String toDisplayPath(String path) {
+        return path.isEmpty() ? archive.getAbsolutePath() : archive.getAbsolutePath() + File.separatorChar + path;
+    }
+
+    @Override
+    public void makeDirectory(String path) throws IOException {
+        if (!isDirectory(path)) {
+            changed = true;
+        }
+        super.makeDirectory(path);
+    }
+
+    @Override
+    public StorageOutputStream write(String path) throws IOException {
+        changed = true;
+        return super.write(path);
+    }
+
+    @Override
+    public boolean setLastModified(String path, long lastModified) throws IOException {
+        changed = true;
+        return super.setLastModified(path, lastModified);
+    }
+
+    @Override
+    public boolean delete(String path) throws IOException {
+        boolean deleted = super.delete(path);
+        if (deleted) {
+            changed = true;
+        }
+        return deleted;
+    }
+
+    /**
+     * Writes the changes to the archive, or, without changes, opens the
+     * archive again to see the changes of other machines.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (changed) {
+            checkUnchanged();
+        }
+
+        // the zip file system only rewrites the archive if it was changed
+        getRoot().getFileSystem().close();
+        setRoot(open(archive));
+        openedSize = archive.length();
+        openedLastModified = archive.lastModified();
+        changed = false;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (changed) {
+            checkUnchanged();
+        }
+        getRoot().getFileSystem().close();
+    }
+
+    /**
+     * Makes sure that writing the archive doesn't overwrite the changes of
+     * another machine.
+     * 
+     * @throws IOException If the archive has been replaced since it was
+     *             opened.
+     */
+    private void checkUnchanged() throws IOException {
+        if (archive.length() != openedSize || archive.lastModified() != openedLastModified) {
+            throw new IOException(archive + " was changed by another machine; a sync archive can only be written"
+                    + " by a single machine");
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import nl.koziuk.crowsync.persist.FileEntry;
+
+/**
+ * The result of comparing a save directory with its sync directory, as
+ * computed by DirectoryDiff. All lists are sorted by file name.
+ * 
+ * @author marcin
+ */
+public class ChangeSet {
+    private final List<FileEntry> copyToSave = new ArrayList<FileEntry>();
+    private final List<FileEntry> copyToSync = new ArrayList<FileEntry>();
+    private final List<FileEntry> deleteFromSync = new ArrayList<FileEntry>();
+    private final List<FileEntry> unchanged = new ArrayList<FileEntry>();
+    private final List<FileEntry> touched = new ArrayList<FileEntry>();
+    private final List<FileEntry> conflicts = new ArrayList<FileEntry>();
+    private final List<FileEntry> deferred = new ArrayList<FileEntry>();
+
+    /**
+     * Returns the sync folder files that are missing or older in the save
+     * directory.
+     * 
+     * @return The entries of the files in the sync folder.
+     */
+    public List<FileEntry> getCopyToSave() {
+        return Collections.unmodifiableList(copyToSave);
+    }
+
+    /**
+     * Returns the save files that are missing or older in the sync folder.
+     * 
+     * @return The entries of the files in the save directory.
+     */
+    public List<FileEntry> getCopyToSync() {
+        return Collections.unmodifiableList(copyToSync);
+    }
+
+    /**
+     * Returns the sync folder files that are not among the newest saves any
+     * longer.
+     * 
+     * @return The entries of the files in the sync folder.
+     */
+    public List<FileEntry> getDeleteFromSync() {
+        return Collections.unmodifiableList(deleteFromSync);
+    }
+
+    /**
+     * Returns the save files that are the same on both sides.
+     * 
+     * @return The entries of the files in the save directory.
+     */
+    public List<FileEntry> getUnchanged() {
+        return Collections.unmodifiableList(unchanged);
+    }
+
+    /**
+     * Returns the files with the same content on both sides but a different
+     * modification time, for example because a game or a virus scanner only
+     * touched the save. Only the modification time of the save file has to
+     * be changed.
+     * 
+     * @return The entries of the files in the sync folder.
+     */
+    public List<FileEntry> getTouched() {
+        return Collections.unmodifiableList(touched);
+    }
+
+    /**
+     * Returns the files that were changed on both sides since they were last
+     * synchronized. The local save is sent as usual; the version in the sync
+     * folder must be kept aside instead of being overwritten.
+     * 
+     * @return The entries of the files in the sync folder.
+     */
+    public List<FileEntry> getConflicts() {
+        return Collections.unmodifiableList(conflicts);
+    }
+
+    /**
+     * Returns the save files that would be sent, but are still being written.
+     * 
+     * @return The entries of the files in the save directory.
+     */
+    public List<FileEntry> getDeferred() {
+        return Collections.unmodifiableList(deferred);
+    }
+
+    /**
+     * Returns whether nothing needs to be copied or deleted.
+     * 
+     * @return True if there are no changes.
+     */
+    public boolean isEmpty() {
+        return copyToSave.isEmpty() && copyToSync.isEmpty() && deleteFromSync.isEmpty() && conflicts.isEmpty();
+    }
+
+    void addCopyToSave(FileEntry entry) {
+        copyToSave.add(entry);
+    }
+
+    void addCopyToSync(FileEntry entry) {
+        copyToSync.add(entry);
+    }
+
+    void addDeleteFromSync(FileEntry entry) {
+        deleteFromSync.add(entry);
+    }
+
+    void addUnchanged(FileEntry entry) {
+        unchanged.add(entry);
+    }
+
+    void addTouched(FileEntry entry) {
+        touched.add(entry);
+    }
+
+    void addConflict(FileEntry entry) {
+        conflicts.add(entry);
+    }
+
+    /**
+     * Moves save files from the files to send to the deferred files. Old
+     * saves are only removed from the sync folder once the new ones are sent,
+     * so if anything is deferred nothing is deleted either.
+     */
+    void defer(Set<String> names) {
+        for (Iterator<FileEntry> it = copyToSync.iterator(); it.hasNext();) {
+            FileEntry entry = it.next();
+
+            if (names.contains(entry.getName())) {
+                it.remove();
+                deferred.add(entry);
+            }
+        }
+
+        if (!deferred.isEmpty()) {
+            deleteFromSync.clear();
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import nl.koziuk.crowsync.persist.ChunkRecipe;
+import nl.koziuk.crowsync.persist.ChunkRecipe.Chunk;
+import nl.koziuk.crowsync.persist.FileEntry;
+import nl.koziuk.crowsync.storage.StorageBackend;
+import nl.koziuk.crowsync.storage.StorageOutputStream;
+import nl.koziuk.crowsync.storage.StoragePath;
+import nl.koziuk.crowsync.util.ContentChunker;
+import nl.koziuk.crowsync.util.FileUtil;
+import nl.koziuk.crowsync.util.HashUtil;
+import nl.koziuk.crowsync.util.IoThrottle;
+import nl.koziuk.crowsync.util.XxHash64;
+
+/**
+ * Stores saves as content-defined chunks, so the versions of a save (and
+ * saves of different games) share the data they have in common. The chunks
+ * are stored by hash in a chunk store in the sync folder, shared by all
+ * games, and every save is described by a ChunkRecipe in the game's
+ * directory. A chunk that already exists is not written again.
+ * 
+ * Chunks are only removed by collectGarbage, once no recipe in the sync
+ * folder refers to them for a day. The grace period gives the cloud client
+ * time to download recipes written by other machines. Reusing a chunk makes
+ * it new again.
+ * 
+ * @author marcin
+ */
+public class ChunkedLayout implements SyncLayout {
+    public static final String CHUNK_DIR = ".crowsync-chunks";
+
+    private static final long GARBAGE_GRACE_PERIOD = 24 * 60 * 60 * 1000;
+
+    private final StorageBackend backend;
+
+    /**
+     * Creates a chunked layout.
+     * 
+     * @param backend The storage of the sync folder, which contains the
+     *            chunk store and a directory for every game.
+     */
+    public ChunkedLayout(StorageBackend backend) {
+        this.backend = backend;
+    }
+
+    @Override
+    public String fileNameOf(String saveName) {
+        return ChunkRecipe.fileNameFor(saveName);
+    }
+
+    @Override
+    public String saveNameOf(String fileName) {
+        return ChunkRecipe.saveNameOf(fileName);
+    }
+
+    @Override
+    public FileEntry describe(String storedPath, FileEntry stored, String saveName, FileEntry known) {
+        try {
+            FileEntry entry = ChunkRecipe.read(backend, storedPath).toEntry(saveName);
+
+            if (known != null && known.sameAttributes(entry) && known.getHash() == entry.getHash()) {
+                return known;
+            }
+            return entry;
+        } catch (IOException e) {
+            // not completely downloaded yet
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isAvailable(String storedPath) {
+        try {
+            for (Chunk chunk : ChunkRecipe.read(backend, storedPath).getChunks()) {
+                if (!isStored(chunk)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public FileEntry store(File saveFile, String storedPath) throws IOException {
+        long lastModified = saveFile.lastModified();
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        XxHash64 fileHash = new XxHash64();
+        long size = 0;
+
+        InputStream in = null;
+
+        IoThrottle.operation();
+        try {
+            in = new FileInputStream(saveFile);
+            ContentChunker chunker = new ContentChunker(in);
+            byte[] data = new byte[ContentChunker.MAX_CHUNK_SIZE];
+            int length;
+
+            while ((length = chunker.next(data)) >= 0) {
+                XxHash64 chunkHash = new XxHash64();
+                chunkHash.update(data, 0, length);
+                fileHash.update(data, 0, length);
+
+                Chunk chunk = new Chunk(chunkHash.getValue(), length);
+                storeChunk(chunk, data);
+                chunks.add(chunk);
+                size += length;
+                IoThrottle.transfer(length);
+            }
+        } finally {
+            FileUtil.closeQuietly(in);
+        }
+
+        ChunkRecipe recipe = new ChunkRecipe(size, lastModified, fileHash.getValue(), chunks);
+        recipe.write(backend, storedPath);
+        return recipe.toEntry(saveFile.getName());
+    }
+
+    @Override
+    public long restore(String storedPath, File saveFile) throws IOException {
+        ChunkRecipe recipe = ChunkRecipe.read(backend, storedPath);
+        File tempFile = FileUtil.tempFileFor(saveFile);
+        XxHash64 fileHash = new XxHash64();
+        byte[] data = new byte[ContentChunker.MAX_CHUNK_SIZE];
+
+        FileOutputStream out = null;
+        boolean done = false;
+
+        IoThrottle.operation();
+        try {
+            out = new FileOutputStream(tempFile);
+
+            for (Chunk chunk : recipe.getChunks()) {
+                readChunk(chunk, data);
+                fileHash.update(data, 0, chunk.getLength());
+                out.write(data, 0, chunk.getLength());
+                IoThrottle.transfer(chunk.getLength());
+            }
+
+            FileUtil.forceToDisk(out);
+            out.close();
+            out = null;
+
+            if (fileHash.getValue() != recipe.getHash()) {
+                throw new IOException("Chunks of " + backend.toDisplayPath(storedPath) + " don't match its hash");
+            }
+            done = true;
+        } finally {
+            FileUtil.closeQuietly(out);
+
+            if (!done) {
+                tempFile.delete();
+            }
+        }
+
+        if (!tempFile.setLastModified(recipe.getLastModified())) {
+            tempFile.delete();
+            throw new IOException("Could not set the modification time of " + tempFile);
+        }
+
+        try {
+            FileUtil.moveAtomically(tempFile, saveFile);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        return recipe.getHash();
+    }
+
+    @Override
+    public long hashStored(String storedPath) throws IOException {
+        ChunkRecipe recipe = ChunkRecipe.read(backend, storedPath);
+        XxHash64 fileHash = new XxHash64();
+        byte[] data = new byte[ContentChunker.MAX_CHUNK_SIZE];
+
+        for (Chunk chunk : recipe.getChunks()) {
+            readChunk(chunk, data);
+            fileHash.update(data, 0, chunk.getLength());
+        }
+
+        return fileHash.getValue();
+    }
+
+    @Override
+    public void delete(Collection<String> storedPaths) throws IOException {
+        // the chunks are removed by collectGarbage
+        backend.deleteAll(storedPaths);
+    }
+
+    /**
+     * Removes the chunks that are not referred to by any recipe in any
+     * directory of the sync folder, including those of games that are not
+     * configured on this machine.
+     */
+    @Override
+    public void collectGarbage() throws IOException {
+        List<String> gameDirs = backend.listDirectories("");
+        List<String> chunkSubDirs = backend.listDirectories(CHUNK_DIR);
+
+        if (gameDirs == null || chunkSubDirs == null) {
+            return;
+        }
+
+        Set<String> used = new HashSet<String>();
+
+        for (String gameDir : gameDirs) {
+            List<FileEntry> files = gameDir.equals(CHUNK_DIR) ? null : backend.list(gameDir);
+            if (files == null) {
+                continue;
+            }
+
+            for (FileEntry file : files) {
+                if (!ChunkRecipe.isRecipe(file.getName())) {
+                    continue;
+                }
+
+                try {
+                    for (Chunk chunk : ChunkRecipe.read(backend, StoragePath.join(gameDir, file.getName()))
+                            .getChunks()) {
+                        used.add(HashUtil.toHex(chunk.getHash()));
+                    }
+                } catch (IOException e) {
+                    // a recipe that can't be read may be incomplete, so
+                    // don't remove anything
+                    return;
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        List<String> unused = new ArrayList<String>();
+
+        for (String subDir : chunkSubDirs) {
+            String dir = StoragePath.join(CHUNK_DIR, subDir);
+            List<FileEntry> chunkFiles = backend.list(dir);
+            if (chunkFiles == null) {
+                continue;
+            }
+
+            for (FileEntry chunkFile : chunkFiles) {
+                if (!used.contains(chunkFile.getName()) && now - chunkFile.getLastModified() > GARBAGE_GRACE_PERIOD) {
+                    unused.add(StoragePath.join(dir, chunkFile.getName()));
+                }
+            }
+        }
+
+        backend.deleteAll(unused);
+    }
+
+    /**
+     * Returns the path of a chunk. Chunks are spread over 256 directories by
+     * the first two digits of their hash.
+     */
+    private static String chunkPath(long hash) {
+        String name = HashUtil.toHex(hash);
+        return StoragePath.join(StoragePath.join(CHUNK_DIR, name.substring(0, 2)), name);
+    }
+
+    /**
+     * Returns whether a chunk is completely in the store.
+     */
+    private boolean isStored(Chunk chunk) throws IOException {
+        FileEntry file = backend.stat(chunkPath(chunk.getHash()));
+        return file != null && file.getSize() == chunk.getLength();
+    }
+
+    /**
+     * Writes a chunk if it isn't in the store yet.
+     */
+    private void storeChunk(Chunk chunk, byte[] data) throws IOException {
+        String path = chunkPath(chunk.getHash());
+
+        if (isStored(chunk)) {
+            // keep it away from the garbage collector
+            backend.setLastModified(path, System.currentTimeMillis());
+            return;
+        }
+
+        IoThrottle.operation();
+        backend.makeDirectory(StoragePath.parentOf(path));
+        StorageOutputStream out = backend.write(path);
+
+        try {
+            out.write(data, 0, chunk.getLength());
+            out.commit();
+        } finally {
+            FileUtil.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Reads a whole chunk.
+     */
+    private void readChunk(Chunk chunk, byte[] data) throws IOException {
+        String path = chunkPath(chunk.getHash());
+        InputStream in = null;
+
+        if (chunk.getLength() > data.length) {
+            throw new IOException("Chunk " + backend.toDisplayPath(path) + " is too long");
+        }
+
+        try {
+            in = backend.read(path);
+            int read = 0;
+
+            while (read < chunk.getLength()) {
+                int n = in.read(data, read, chunk.getLength() - read);
+                if (n < 0) {
+                    throw new IOException("Chunk " + backend.toDisplayPath(path) + " is too short");
+                }
+                read += n;
+            }
+        } finally {
+            FileUtil.closeQuietly(in);
+        }
+    }
+}
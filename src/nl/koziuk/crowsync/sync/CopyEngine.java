@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Copies save files between the save directory and the sync folder.
+ * Implementations must be safe to use from multiple threads.
+ * 
+ * @author marcin
+ */
+public interface CopyEngine {
+
+    /**
+     * Copies a file into a directory. The copy keeps the name and the
+     * modification time of the source file and replaces an existing file
+     * with the same name.
+     * 
+     * @param sourceFile The file to copy.
+     * @param destDir The directory to copy it to.
+     * @return The number of bytes copied.
+     * @throws IOException If the file could not be copied.
+     */
+    public long copyFileToDir(File sourceFile, File destDir) throws IOException;
+}
@@ -17,43 +17,156 @@ package nl.koziuk.crowsync.sync;
 
 import java.awt.EventQueue;
 import java.io.File;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import nl.koziuk.crowsync.CrowSync;
 import nl.koziuk.crowsync.CrowSyncException;
 import nl.koziuk.crowsync.ErrorDialog;
 import nl.koziuk.crowsync.persist.ConfigFile;
+import nl.koziuk.crowsync.persist.FileEntry;
 import nl.koziuk.crowsync.persist.GameFile;
 import nl.koziuk.crowsync.persist.GameInfo;
+import nl.koziuk.crowsync.persist.GenerationFile;
+import nl.koziuk.crowsync.persist.HashCache;
+import nl.koziuk.crowsync.persist.LeaseFile;
+import nl.koziuk.crowsync.persist.SyncHistory;
+import nl.koziuk.crowsync.persist.SyncHistory.Record;
+import nl.koziuk.crowsync.persist.Version;
+import nl.koziuk.crowsync.storage.LocalBackend;
+import nl.koziuk.crowsync.storage.StorageBackend;
+import nl.koziuk.crowsync.storage.ZipBackend;
+import nl.koziuk.crowsync.sync.SyncPlan.Operation;
+import nl.koziuk.crowsync.sync.SynchronizerTask.GameLaunchedTask;
+import nl.koziuk.crowsync.sync.SynchronizerTask.StartTask;
+import nl.koziuk.crowsync.sync.SynchronizerTask.StopTask;
+import nl.koziuk.crowsync.sync.WorkBudget.Allowance;
 import nl.koziuk.crowsync.systray.SystrayTask;
+import nl.koziuk.crowsync.systray.SystrayTask.ConflictTask;
 import nl.koziuk.crowsync.systray.SystrayTask.ExitTask;
+import nl.koziuk.crowsync.systray.SystrayTask.ProgressTask;
 import nl.koziuk.crowsync.systray.SystrayTask.ReceivedTask;
 import nl.koziuk.crowsync.systray.SystrayTask.RemovedTask;
 import nl.koziuk.crowsync.systray.SystrayTask.SentTask;
-import nl.koziuk.crowsync.util.OSUtil;
-import nl.koziuk.crowsync.util.WindowsUtil;
+import nl.koziuk.crowsync.systray.SystrayTask.VerifyFailedTask;
+import nl.koziuk.crowsync.util.Durability;
+import nl.koziuk.crowsync.util.FileUtil;
+import nl.koziuk.crowsync.util.HashUtil;
+import nl.koziuk.crowsync.util.IoThrottle;
+import nl.koziuk.crowsync.util.OwnChanges;
+import nl.koziuk.crowsync.util.ProcessTable;
 
 public class CrowSyncSynchronizer implements Runnable {
     public static final int RUNNING = 0;
     public static final int STOPPED = 1;
     public static final int NOT_RESPONDING = 2;
 
+    // how many times a save is copied before giving up on verifying it
+    private static final int MAX_COPY_ATTEMPTS = 3;
+
     // for pushing tasks to other threads
     private final BlockingQueue<SystrayTask> systrayQueue;
     private final BlockingQueue<SynchronizerTask> syncQueue;
 
+    private final CopyEngine copyEngine;
+    private SyncLayout syncLayout;
+
+    // the storage of the sync folder, and the one given instead of the
+    // configured one, if any
+    private StorageBackend storage = null;
+    private final StorageBackend fixedStorage;
+    private long lastGarbageCollection = 0;
+
+    // shared by the worker threads, so processes are listed once per cycle
+    private final ProcessTable processTable = new ProcessTable(0);
+
+    private final SaveStabilizer saveStabilizer = new SaveStabilizer(0);
+
+    // content hashes of local saves, so touched saves are not copied
+    private final HashCache hashCache = new HashCache(new File(CrowSync.HASH_CACHE_FILENAME));
+    private SaveHasher saveHasher = null;
+    private boolean verifyCopies = true;
+
+    // whether plans are only written to the plan file instead of carried out
+    private boolean dryRun = false;
+
+    // how fast saves are copied while no game is running and while one is,
+    // in bytes and operations per second
+    private long copyRateLimit = 0;
+    private long copyOpsLimit = 0;
+    private long playingCopyRateLimit = 0;
+    private long playingCopyOpsLimit = 0;
+
+    // the file operations and bytes each game may copy per timestep
+    private final WorkBudget workBudget = new WorkBudget();
+
+    // the save files copied during this timestep, for the systray
+    private int copiesPlanned = 0;
+    private final AtomicInteger copiesDone = new AtomicInteger();
+
+    // what every save was like when it was last synchronized, so that
+    // changes can be detected without comparing clocks
+    private final SyncHistory syncHistory = new SyncHistory(new File(CrowSync.HISTORY_FILENAME));
+
+    // games with save files that are still being written or that wait for
+    // a lease, by name, with the time at which to scan them again
+    private final Map<String, Long> deferredGames = new ConcurrentHashMap<String, Long>();
+
     private String syncFolderPath;
+    private String machineId;
     private int maxGameSaves;
     private List<GameInfo> gameList;
 
     private boolean running = false;
 
+    private ExecutorService syncExecutor = null;
+    private int syncThreads = 0;
+
+    // by game name, shared by the worker threads
+    private final Map<String, SyncDirectory> syncDirectories = new ConcurrentHashMap<String, SyncDirectory>();
+
+    // the generations of the game directories in the sync folder, and the
+    // generation of every game this machine has last looked at
+    private GenerationFile generations = null;
+    private final Map<String, Long> processedGenerations = new ConcurrentHashMap<String, Long>();
+
+    // games that need to be scanned, as reported by the directory watcher
+    private DirectoryWatcher directoryWatcher = null;
+    private final Set<String> changedGames = new HashSet<String>();
+    private final Set<String> changedSyncDirs = new HashSet<String>();
+    private boolean rescanAll = true;
+    private long lastVerifyTime = 0;
+
+    // how long the last and slowest timesteps took after they were due, for
+    // measurements; written by the synchronizer thread only
+    private volatile long lastTickLatency = 0;
+    private volatile long maxTickLatency = 0;
+
+    // how often games are scanned without being reported as changed
+    private final ScanScheduler scanScheduler = new ScanScheduler();
+
+    private GameProcessMonitor gameProcessMonitor = null;
+
     /**
      * Creates a new synchronization Runnable that may be started by a
      * thread.
@@ -63,202 +176,1367 @@ public class CrowSyncSynchronizer implements Runnable {
      *            messages.
      */
     public CrowSyncSynchronizer(BlockingQueue<SystrayTask> systrayQueue, BlockingQueue<SynchronizerTask> syncQueue) {
+        this(systrayQueue, syncQueue, new NioCopyEngine());
+    }
+
+    /**
+     * Creates a new synchronization Runnable that copies files with the given
+     * copy engine.
+     * 
+     * @param systrayQueue The blocking queue of the systray.
+     * @param syncQueue The blocking queue to use for the synchronizer's
+     *            messages.
+     * @param copyEngine The engine used to copy save files.
+     */
+    public CrowSyncSynchronizer(BlockingQueue<SystrayTask> systrayQueue, BlockingQueue<SynchronizerTask> syncQueue,
+            CopyEngine copyEngine) {
+        this(systrayQueue, syncQueue, copyEngine, null);
+    }
+
+    /**
+     * Creates a new synchronization Runnable that keeps the sync folder in
+     * the given storage instead of the configured one, for example in memory
+     * for tests and measurements. The storage is closed when the thread ends.
+     * 
+     * @param systrayQueue The blocking queue of the systray.
+     * @param syncQueue The blocking queue to use for the synchronizer's
+     *            messages.
+     * @param copyEngine The engine used to copy save files.
+     * @param storage The storage of the sync folder, or null to use the
+     *            configured one.
+     */
+    public CrowSyncSynchronizer(BlockingQueue<SystrayTask> systrayQueue, BlockingQueue<SynchronizerTask> syncQueue,
+            CopyEngine copyEngine, StorageBackend storage) {
         super();
         this.systrayQueue = systrayQueue;
         this.syncQueue = syncQueue;
+        this.copyEngine = copyEngine;
+        this.fixedStorage = storage;
+    }
+
+    /**
+     * Lists the files in a save directory. Temporary files are skipped, and
+     * removed if they were left behind by a crash and asked to.
+     * 
+     * @param saveDir The save directory.
+     * @param cleanUp Whether to remove stale temporary files.
+     * @return The entries of the files, or null if the directory doesn't
+     *         exist.
+     */
+    private static List<FileEntry> listSaveDir(File saveDir, boolean cleanUp) {
+        File[] files = saveDir.listFiles();
+
+        if (files == null) {
+            return null;
+        }
+
+        List<FileEntry> entries = new ArrayList<FileEntry>(files.length);
+        for (File file : files) {
+            if (FileUtil.isTempFile(file.getName())) {
+                if (cleanUp) {
+                    FileUtil.deleteStaleTempFile(file);
+                }
+            } else if (file.isFile()) {
+                entries.add(new FileEntry(file));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Hashes the save files that have the same size as in the sync folder
+     * but a different modification time, so that files which were only
+     * touched can be recognized.
+     * 
+     * @param saveDir The save directory.
+     * @param saveEntries The files in the save directory.
+     * @param syncEntries The files in the sync directory, by name.
+     * @return The files in the save directory, with hashes where needed.
+     */
+    private List<FileEntry> hashTouchedSaves(File saveDir, List<FileEntry> saveEntries,
+            Map<String, FileEntry> syncEntries) {
+        List<FileEntry> touched = new ArrayList<FileEntry>();
+        List<FileEntry> others = new ArrayList<FileEntry>(saveEntries.size());
+
+        for (FileEntry saveEntry : saveEntries) {
+            FileEntry syncEntry = syncEntries.get(saveEntry.getName());
+
+            if (syncEntry != null && syncEntry.hasHash() && syncEntry.getSize() == saveEntry.getSize()
+                    && syncEntry.getLastModified() != saveEntry.getLastModified()) {
+                touched.add(saveEntry);
+            } else {
+                others.add(saveEntry);
+            }
+        }
+
+        if (touched.isEmpty()) {
+            return saveEntries;
+        }
+
+        others.addAll(saveHasher.hash(saveDir, touched));
+        return others;
+    }
+
+    /**
+     * Returns the cached sync directory of a game.
+     * 
+     * @param game The game.
+     * @return Its directory in the sync folder.
+     */
+    private SyncDirectory getSyncDirectory(GameInfo game) {
+        SyncDirectory syncDir = syncDirectories.get(game.getName());
+
+        if (syncDir == null) {
+            syncDir = new SyncDirectory(storage, game.getName(), syncLayout, machineId);
+            syncDirectories.put(game.getName(), syncDir);
+        }
+
+        return syncDir;
+    }
+
+    /**
+     * Decides what a scan of a single game is going to do, from snapshots of
+     * its save directory, its sync directory and its history. Nothing is
+     * written to either directory yet, and in dry-run mode stale temporary
+     * files are left alone as well. The sync directory is only looked at
+     * if it is verified or its generation has moved since the last scan.
+     * Planning stops after each slow step if the timestep was cancelled, and
+     * the game is scanned again during the next one.
+     * 
+     * @param game The game.
+     * @param verify Whether the sync directory has to be compared with its
+     *            manifest.
+     * @return The plan, or null if the save directory doesn't exist or the
+     *         timestep was cancelled.
+     */
+    private SyncPlan planGame(GameInfo game, boolean verify) {
+        SyncDirectory syncDir = getSyncDirectory(game);
+        File saveDir = new File(game.getSavePath());
+        List<FileEntry> saveEntries = listSaveDir(saveDir, !dryRun);
+
+        if (saveEntries == null) {
+            // not installed, probably; scanned rarely until it is started
+            scanScheduler.changed(game.getName(), 0);
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        long newest = 0;
+        for (FileEntry saveEntry : saveEntries) {
+            newest = Math.max(newest, saveEntry.getLastModified());
+        }
+        scanScheduler.changed(game.getName(), Math.min(newest, now));
+
+        long generation = generations.get(game.getName());
+
+        try {
+            if (verify || hasMoved(game, syncDir, generation)) {
+                syncDir.refresh(verify, !dryRun);
+            }
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not read the manifest in " + syncDir.getDisplayPath(), e);
+        }
+        if (deferIfCancelled(game)) {
+            return null;
+        }
+
+        saveEntries = hashTouchedSaves(saveDir, saveEntries, syncDir.getEntries());
+        if (deferIfCancelled(game)) {
+            return null;
+        }
+
+        ChangeSet changes = DirectoryDiff.diff(saveEntries, syncDir.getEntries().values(), maxGameSaves,
+                syncDir.getTombstones(), syncHistory.getRecords(game.getName()));
+        long due = saveStabilizer.stabilize(game.getName(), changes, now);
+        if (due != 0) {
+            deferGame(game.getName(), due);
+        }
+
+        SyncPlan plan = buildPlan(game, syncDir, generation, saveEntries, changes);
+        if (plan.hasWork() || due != 0) {
+            scanScheduler.changed(game.getName(), now);
+        }
+        return plan;
+    }
+
+    /**
+     * Turns the differences between the save and sync directory into
+     * operations. Conflicting versions are only kept if the save was seen
+     * before, and saves are only sent and removed while the game isn't
+     * running. Every sent save gets a new version, after the ones this
+     * machine has seen.
+     * 
+     * @param game The game.
+     * @param syncDir The game's directory in the sync folder.
+     * @param generation The generation of the sync directory.
+     * @param saveEntries The files in the save directory.
+     * @param changes The differences between the save and sync directory.
+     * @return The plan.
+     */
+    private SyncPlan buildPlan(GameInfo game, SyncDirectory syncDir, long generation, List<FileEntry> saveEntries,
+            ChangeSet changes) {
+        Map<String, Record> history = syncHistory.getRecords(game.getName());
+        Map<String, FileEntry> syncEntries = syncDir.getEntries();
+        List<Operation> operations = new ArrayList<Operation>();
+
+        for (FileEntry syncEntry : changes.getConflicts()) {
+            if (history.containsKey(syncEntry.getName()) && syncDir.isAvailable(syncEntry.getName())) {
+                operations.add(new Operation(SyncPlan.KEEP_CONFLICT, syncEntry, null));
+            }
+        }
+
+        for (FileEntry syncEntry : changes.getCopyToSave()) {
+            if (FileUtil.isTempFile(syncEntry.getName())) {
+                // listed by a broken manifest, never a save
+                continue;
+            }
+            if (!syncDir.isAvailable(syncEntry.getName())) {
+                // listed by another machine, but not downloaded yet
+                continue;
+            }
+            operations.add(new Operation(SyncPlan.RECEIVE, syncEntry, null));
+        }
+
+        for (FileEntry saveEntry : changes.getUnchanged()) {
+            FileEntry syncEntry = syncEntries.get(saveEntry.getName());
+
+            if (syncEntry != null) {
+                operations.add(new Operation(SyncPlan.RECORD, saveEntry, syncEntry.getVersion()));
+            }
+        }
+
+        for (FileEntry syncEntry : changes.getTouched()) {
+            operations.add(new Operation(SyncPlan.TOUCH, syncEntry, null));
+        }
+
+        if (!processTable.contains(game.getExecutablePath())) {
+            for (FileEntry saveEntry : changes.getCopyToSync()) {
+                FileEntry syncEntry = syncEntries.get(saveEntry.getName());
+                Record record = history.get(saveEntry.getName());
+                Version version = Version.next(machineId, syncEntry == null ? null : syncEntry.getVersion(),
+                        record == null ? null : record.getVersion());
+
+                operations.add(new Operation(SyncPlan.SEND, saveEntry, version));
+            }
+
+            for (FileEntry syncEntry : changes.getDeleteFromSync()) {
+                operations.add(new Operation(SyncPlan.REMOVE, syncEntry, null));
+            }
+        }
+
+        List<String> saveNames = new ArrayList<String>(saveEntries.size());
+        for (FileEntry saveEntry : saveEntries) {
+            saveNames.add(saveEntry.getName());
+        }
+        return new SyncPlan(game.getName(), generation, operations, saveNames);
+    }
+
+    /**
+     * Carries out the plan of a single game. With group durability, the
+     * renames of the saves that were written are made durable together before
+     * the manifest that lists them is written. Afterwards the history of the
+     * game describes every save that exists on both sides.
+     * 
+     * The lease on the sync directory is kept after sending, so that the
+     * next sends don't have to wait for it to settle again. Operations are
+     * carried out in order until the game's allowance runs out; the manifest
+     * then lists what was done so far.
+     * 
+     * @param game The game.
+     * @param plan The plan of the game.
+     * @param allowance What the game may still do during this timestep.
+     * @return The systray notifications.
+     */
+    private List<SystrayTask> executePlan(GameInfo game, SyncPlan plan, Allowance allowance) {
+        List<SystrayTask> tasks = new LinkedList<SystrayTask>();
+        SyncDirectory syncDir = getSyncDirectory(game);
+        long generation = plan.getGeneration();
+
+        Durability.begin();
+        try {
+            keepConflicts(game, syncDir, plan, allowance, tasks);
+            receiveSaves(game, syncDir, plan, allowance, tasks);
+            recordUnchanged(game, plan, allowance);
+            touchSaves(game, plan, allowance);
+            sendSaves(game, syncDir, plan, allowance, tasks);
+            retainHistory(game, plan, syncDir);
+
+            forceWrites(game);
+            if (syncDir.commit()) {
+                generation = bumpGeneration(game, generation);
+            }
+            forceWrites(game);
+            processedGenerations.put(game.getName(), generation);
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not update the manifest in " + syncDir.getDisplayPath(), e);
+        } finally {
+            Durability.end();
+        }
+
+        return tasks;
+    }
+
+    /**
+     * Returns whether a game's sync directory may have been changed by
+     * another machine since it was last looked at.
+     * 
+     * @param game The game.
+     * @param syncDir The game's directory in the sync folder.
+     * @param generation The current generation of the directory.
+     * @return True if the directory must be refreshed.
+     */
+    private boolean hasMoved(GameInfo game, SyncDirectory syncDir, long generation) {
+        Long processed = processedGenerations.get(game.getName());
+        return !generations.exists() || !syncDir.isLoaded() || processed == null || processed != generation;
+    }
+
+    /**
+     * Increases the generation of a game's sync directory after writing to
+     * it.
+     * 
+     * @param game The game.
+     * @param generation The generation of the directory before writing.
+     * @return The generation that includes the changes of this scan.
+     */
+    private long bumpGeneration(GameInfo game, long generation) {
+        try {
+            long bumped = generations.bump(game.getName());
+
+            // if another machine has increased it in the meantime, its
+            // changes still have to be looked at
+            return bumped == generation + 1 ? bumped : generation;
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not update the generations in " + syncFolderPath, e);
+        }
+    }
+
+    /**
+     * Makes a game be scanned again at a given time, or earlier if it was
+     * already due.
+     * 
+     * @param gameName The name of the game.
+     * @param due The time at which to scan it.
+     */
+    private void deferGame(String gameName, long due) {
+        Long current = deferredGames.get(gameName);
+
+        if (current == null || due < current) {
+            deferredGames.put(gameName, due);
+        }
+    }
+
+    /**
+     * Acquires the lease on a game's sync directory. If it can't be acquired
+     * yet, the game is scanned again after the settle time.
+     * 
+     * @param game The game.
+     * @param syncDir The game's directory in the sync folder.
+     * @return LeaseFile.HELD, LeaseFile.PENDING or LeaseFile.TAKEN.
+     */
+    private int acquireLease(GameInfo game, SyncDirectory syncDir) {
+        int state;
+
+        try {
+            state = syncDir.acquireLease();
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not write the lease in " + syncDir.getDisplayPath(), e);
+        }
+
+        if (state != LeaseFile.HELD) {
+            deferGame(game.getName(), System.currentTimeMillis() + LeaseFile.SETTLE_TIME);
+        }
+        return state;
+    }
+
+    /**
+     * Forces the files written for a game so far to disk.
+     * 
+     * @param game The game.
+     */
+    private void forceWrites(GameInfo game) {
+        try {
+            Durability.commit();
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not write the saves of " + game.getName() + " to disk", e);
+        }
+    }
+
+    /**
+     * Copies the versions in the sync folder of saves that were also changed
+     * locally to the conflicts directory, so that they are not lost when the
+     * local saves are sent. The history then records the conflicting version
+     * as seen, so it is not copied again.
+     * 
+     * @param game The game.
+     * @param syncDir The game's directory in the sync folder.
+     * @param plan The plan of the game.
+     * @param allowance What the game may still do during this timestep.
+     * @param tasks The list to add systray notifications to.
+     */
+    private void keepConflicts(GameInfo game, SyncDirectory syncDir, SyncPlan plan, Allowance allowance,
+            List<SystrayTask> tasks) {
+        Map<String, Record> history = syncHistory.getRecords(game.getName());
+
+        for (Operation operation : plan.getOperations(SyncPlan.KEEP_CONFLICT)) {
+            if (!allowance.take(operation)) {
+                return;
+            }
+
+            FileEntry syncEntry = operation.getEntry();
+            Record record = history.get(syncEntry.getName());
+            Version version = syncEntry.getVersion();
+
+            String machine = version.getMachineId();
+            File conflictDir = new File(CrowSync.CONFLICTS_DIRNAME + File.separatorChar + game.getName()
+                    + File.separatorChar + machine.substring(0, Math.min(8, machine.length())) + "-"
+                    + version.getCounter());
+
+            conflictDir.mkdirs();
+            if (!conflictDir.isDirectory()) {
+                throw new CrowSyncException("Could not make directory " + conflictDir.getAbsolutePath());
+            }
+
+            receiveSave(syncDir, syncEntry, conflictDir);
+            copied();
+            syncHistory.put(game.getName(), syncEntry.getName(),
+                    new Record(version, record.getSize(), record.getLastModified()));
+            tasks.add(new ConflictTask(game.getName(), new File(conflictDir, syncEntry.getName()).getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Receives saves from the sync folder. Every received save is read back
+     * on the hasher's threads while the next one is written.
+     * 
+     * @param game The game to receive saves for.
+     * @param syncDir The game's directory in the sync folder.
+     * @param plan The plan of the game.
+     * @param allowance What the game may still do during this timestep.
+     * @param tasks The list to add systray notifications to.
+     */
+    private void receiveSaves(GameInfo game, SyncDirectory syncDir, SyncPlan plan, Allowance allowance,
+            List<SystrayTask> tasks) {
+        File saveDir = new File(game.getSavePath());
+        Map<FileEntry, Long> received = new ConcurrentHashMap<FileEntry, Long>();
+        SaveHasher.Checks<FileEntry> checks = saveHasher.startChecks(receivedCheck(saveDir, received));
+
+        for (Operation operation : plan.getOperations(SyncPlan.RECEIVE)) {
+            if (!allowance.take(operation)) {
+                break;
+            }
+
+            FileEntry syncEntry = operation.getEntry();
+            File saveFile = new File(saveDir, syncEntry.getName());
+
+            received.put(syncEntry, receiveSave(syncDir, syncEntry, saveDir));
+            copied();
+            syncHistory.put(game.getName(), syncEntry.getName(),
+                    new Record(syncEntry.getVersion(), saveFile.length(), saveFile.lastModified()));
+            tasks.add(new ReceivedTask(game.getName(), syncDir.getDisplayPath(syncEntry.getName())));
+
+            if (verifyCopies && syncEntry.hasHash()) {
+                checks.add(syncEntry);
+            }
+        }
+
+        verifyReceived(game, syncDir, checks, received, tasks);
+    }
+
+    /**
+     * Receives a single save file.
+     * 
+     * @return The content hash of the written save file, if it is known.
+     */
+    private long receiveSave(SyncDirectory syncDir, FileEntry syncEntry, File saveDir) {
+        try {
+            return syncDir.receive(syncEntry.getName(), saveDir);
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not copy file " + syncDir.getDisplayPath(syncEntry.getName())
+                    + " to directory " + saveDir.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Returns the check of received save files against the content hash
+     * listed in the manifest.
+     * 
+     * @param saveDir The save directory.
+     * @param received The received files, with the content hash computed
+     *            while writing them, if any.
+     * @return The check.
+     */
+    private SaveHasher.ContentCheck<FileEntry> receivedCheck(final File saveDir, final Map<FileEntry, Long> received) {
+        return new SaveHasher.ContentCheck<FileEntry>() {
+            @Override
+            public boolean matches(FileEntry syncEntry) throws IOException {
+                File saveFile = new File(saveDir, syncEntry.getName());
+                long hash = received.get(syncEntry);
+
+                if (hash == FileEntry.NO_HASH) {
+                    hash = HashUtil.hashFile(saveFile);
+                }
+                if (hash != syncEntry.getHash()) {
+                    return false;
+                }
+
+                hashCache.put(saveFile, saveFile.length(), saveFile.lastModified(), hash);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Waits for the checks of received save files, and receives the ones that
+     * don't match again. A save that still doesn't match gets the oldest
+     * possible modification time, so that it is received again during the
+     * next scan but never sent.
+     * 
+     * @param game The game.
+     * @param syncDir The game's directory in the sync folder.
+     * @param checks The checks of the received files.
+     * @param received The received files, with the content hash computed
+     *            while writing them, if any.
+     * @param tasks The list to add systray notifications to.
+     */
+    private void verifyReceived(GameInfo game, SyncDirectory syncDir, SaveHasher.Checks<FileEntry> checks,
+            Map<FileEntry, Long> received, List<SystrayTask> tasks) {
+        File saveDir = new File(game.getSavePath());
+        List<FileEntry> failed = checks.getMismatches();
+
+        for (int attempt = 1; !failed.isEmpty(); attempt++) {
+            SaveHasher.Checks<FileEntry> retries = saveHasher.startChecks(receivedCheck(saveDir, received));
+
+            for (FileEntry syncEntry : failed) {
+                File saveFile = new File(saveDir, syncEntry.getName());
+
+                if (attempt < MAX_COPY_ATTEMPTS) {
+                    received.put(syncEntry, receiveSave(syncDir, syncEntry, saveDir));
+                    retries.add(syncEntry);
+                } else {
+                    saveFile.setLastModified(0);
+                    syncHistory.remove(game.getName(), syncEntry.getName());
+                    tasks.add(new VerifyFailedTask(game.getName(), saveFile.getAbsolutePath()));
+                }
+            }
+            failed = retries.getMismatches();
+        }
+    }
+
+    /**
+     * Records the saves that are the same on both sides in the history, for
+     * example after the first scan of a game.
+     * 
+     * @param game The game.
+     * @param plan The plan of the game.
+     * @param allowance What the game may still do during this timestep.
+     */
+    private void recordUnchanged(GameInfo game, SyncPlan plan, Allowance allowance) {
+        for (Operation operation : plan.getOperations(SyncPlan.RECORD)) {
+            if (!allowance.take(operation)) {
+                return;
+            }
+
+            FileEntry saveEntry = operation.getEntry();
+
+            syncHistory.put(game.getName(), saveEntry.getName(),
+                    new Record(operation.getVersion(), saveEntry.getSize(), saveEntry.getLastModified()));
+        }
+    }
+
+    /**
+     * Gives save files that were only touched the modification time of their
+     * copy in the sync folder, so they are not compared again. If that fails,
+     * the hash cache still prevents them from being hashed again.
+     * 
+     * @param game The game.
+     * @param plan The plan of the game.
+     * @param allowance What the game may still do during this timestep.
+     */
+    private void touchSaves(GameInfo game, SyncPlan plan, Allowance allowance) {
+        File saveDir = new File(game.getSavePath());
+
+        for (Operation operation : plan.getOperations(SyncPlan.TOUCH)) {
+            if (!allowance.take(operation)) {
+                return;
+            }
+
+            FileEntry syncEntry = operation.getEntry();
+            File saveFile = new File(saveDir, syncEntry.getName());
+
+            OwnChanges.touching(saveFile, syncEntry.getLastModified());
+            if (saveFile.length() == syncEntry.getSize() && saveFile.setLastModified(syncEntry.getLastModified())) {
+                hashCache.put(saveFile, syncEntry.getSize(), syncEntry.getLastModified(), syncEntry.getHash());
+                syncHistory.put(game.getName(), syncEntry.getName(),
+                        new Record(syncEntry.getVersion(), syncEntry.getSize(), syncEntry.getLastModified()));
+            }
+        }
+    }
+
+    /**
+     * Sends saves to the sync folder and removes the ones that are not among
+     * the newest saves any longer. Every sent save is read back on the
+     * hasher's threads while the next one is written. Nothing is written
+     * unless this machine holds the lease on the sync directory.
+     * 
+     * @param game The game to send saves for.
+     * @param syncDir The game's directory in the sync folder.
+     * @param plan The plan of the game.
+     * @param allowance What the game may still do during this timestep.
+     * @param tasks The list to add systray notifications to.
+     */
+    private void sendSaves(GameInfo game, SyncDirectory syncDir, SyncPlan plan, Allowance allowance,
+            List<SystrayTask> tasks) {
+        List<Operation> sends = plan.getOperations(SyncPlan.SEND);
+        List<Operation> removes = plan.getOperations(SyncPlan.REMOVE);
+
+        if ((sends.isEmpty() && removes.isEmpty()) || allowance.isExhausted()) {
+            return;
+        }
+
+        File saveDir = new File(game.getSavePath());
+
+        try {
+            syncDir.makeDirectory();
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not make directory " + syncDir.getDisplayPath(), e);
+        }
+
+        if (acquireLease(game, syncDir) != LeaseFile.HELD) {
+            return;
+        }
+
+        SaveHasher.Checks<FileEntry> checks = saveHasher.startChecks(sentCheck(syncDir));
+
+        for (Operation operation : sends) {
+            if (!allowance.take(operation)) {
+                break;
+            }
+
+            FileEntry saveEntry = operation.getEntry();
+            File saveFile = new File(saveDir, saveEntry.getName());
+
+            renewLease(syncDir);
+            FileEntry sent = sendSave(syncDir, saveFile, operation.getVersion());
+            copied();
+            // the attributes as listed, so a save changed while sending is
+            // sent again
+            syncHistory.put(game.getName(), saveEntry.getName(),
+                    new Record(operation.getVersion(), saveEntry.getSize(), saveEntry.getLastModified()));
+            tasks.add(new SentTask(game.getName(), saveFile.getAbsolutePath()));
+
+            if (verifyCopies) {
+                checks.add(sent);
+            }
+        }
+
+        verifySent(game, syncDir, checks, tasks);
+
+        List<String> removed = new ArrayList<String>();
+        for (Operation operation : removes) {
+            if (!allowance.take(operation)) {
+                break;
+            }
+
+            removed.add(operation.getEntry().getName());
+            tasks.add(new RemovedTask(game.getName(), syncDir.getDisplayPath(operation.getEntry().getName())));
+        }
+
+        try {
+            syncDir.delete(removed);
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not remove old saves from " + syncDir.getDisplayPath(), e);
+        }
+    }
+
+    /**
+     * Keeps the lease on a sync directory while sending many saves.
+     */
+    private void renewLease(SyncDirectory syncDir) {
+        try {
+            syncDir.renewLease();
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not renew the lease in " + syncDir.getDisplayPath(), e);
+        }
+    }
+
+    /**
+     * Sends a single save file.
+     * 
+     * @return The entry of the stored save.
+     */
+    private FileEntry sendSave(SyncDirectory syncDir, File saveFile, Version version) {
+        try {
+            return syncDir.send(saveFile, version);
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not copy file " + saveFile.getAbsolutePath() + " to directory "
+                    + syncDir.getDisplayPath(), e);
+        }
+    }
+
+    /**
+     * Returns the check of sent saves, which reads them back from the sync
+     * folder and compares them with the hash of the save file.
+     * 
+     * @param syncDir The game's directory in the sync folder.
+     * @return The check.
+     */
+    private SaveHasher.ContentCheck<FileEntry> sentCheck(final SyncDirectory syncDir) {
+        return new SaveHasher.ContentCheck<FileEntry>() {
+            @Override
+            public boolean matches(FileEntry entry) throws IOException {
+                return syncDir.hashStored(entry.getName()) == entry.getHash();
+            }
+        };
+    }
+
+    /**
+     * Waits for the checks of sent saves, and sends the ones that don't match
+     * again. A stored save that still doesn't match is removed from the sync
+     * folder, so that it is sent again during the next scan.
+     * 
+     * @param game The game.
+     * @param syncDir The game's directory in the sync folder.
+     * @param checks The checks of the stored saves.
+     * @param tasks The list to add systray notifications to.
+     */
+    private void verifySent(GameInfo game, SyncDirectory syncDir, SaveHasher.Checks<FileEntry> checks,
+            List<SystrayTask> tasks) {
+        File saveDir = new File(game.getSavePath());
+        List<FileEntry> failed = checks.getMismatches();
+
+        for (int attempt = 1; !failed.isEmpty(); attempt++) {
+            SaveHasher.Checks<FileEntry> retries = saveHasher.startChecks(sentCheck(syncDir));
+
+            for (FileEntry entry : failed) {
+                File saveFile = new File(saveDir, entry.getName());
+
+                if (attempt < MAX_COPY_ATTEMPTS) {
+                    retries.add(sendSave(syncDir, saveFile, entry.getVersion()));
+                } else {
+                    discardSave(syncDir, entry);
+                    syncHistory.remove(game.getName(), entry.getName());
+                    tasks.add(new VerifyFailedTask(game.getName(), saveFile.getAbsolutePath()));
+                }
+            }
+            failed = retries.getMismatches();
+        }
+    }
+
+    /**
+     * Removes a stored save that failed verification.
+     */
+    private void discardSave(SyncDirectory syncDir, FileEntry entry) {
+        try {
+            syncDir.discard(entry.getName());
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not remove file " + syncDir.getDisplayPath(entry.getName()), e);
+        }
+    }
+
+    /**
+     * Reports a copied save file to the systray.
+     */
+    private void copied() {
+        sendSystrayTask(new ProgressTask(copiesDone.incrementAndGet(), copiesPlanned));
+    }
+
+    /**
+     * Forgets the history of saves that exist on neither side any more.
+     * 
+     * @param game The game.
+     * @param plan The plan of the game.
+     * @param syncDir The game's directory in the sync folder.
+     */
+    private void retainHistory(GameInfo game, SyncPlan plan, SyncDirectory syncDir) {
+        Set<String> names = new HashSet<String>(syncDir.getEntries().keySet());
+
+        names.addAll(plan.getSaveNames());
+        syncHistory.retain(game.getName(), names);
+    }
+
+    /**
+     * Returns the games that need to be scanned this timestep and forgets
+     * about the pending changes. Besides the games that are known to have
+     * changed, every game is scanned when the scan scheduler says it is due:
+     * every timestep while it is hot if its directories are not watched, and
+     * every few minutes if they are, in case a change was never reported
+     * (e.g. by a network or FUSE mount). Games that haven't changed for a
+     * long time are scanned less and less often. The sync directories of the
+     * games that are due are verified as well, but only every few minutes
+     * without a watcher.
+     * 
+     * @param verifyNames Will be filled with the names of the games whose
+     *            sync directories must be compared with their manifest.
+     * @return The games to scan.
+     */
+    private List<GameInfo> takeGamesToScan(Set<String> verifyNames) {
+        // a bit shorter than a timestep, so hot games are scanned every
+        // timestep
+        final long HOT_SCAN_INTERVAL = 3 * 1000;
+        final long WATCHED_SCAN_INTERVAL = 5 * 60 * 1000;
+        long now = System.currentTimeMillis();
+
+        if (rescanAll) {
+            for (GameInfo game : gameList) {
+                verifyNames.add(game.getName());
+                scanScheduler.scanned(game.getName(), now);
+            }
+            rescanAll = false;
+            lastVerifyTime = now;
+            changedGames.clear();
+            changedSyncDirs.clear();
+            deferredGames.clear();
+            return gameList;
+        }
+
+        // without a watcher, the generations tell which sync directories
+        // have changed, so they are only verified every few minutes
+        boolean verifyDue = directoryWatcher != null || now - lastVerifyTime >= WATCHED_SCAN_INTERVAL;
+        if (verifyDue) {
+            lastVerifyTime = now;
+        }
+
+        Set<String> unwatched = directoryWatcher == null ? null : directoryWatcher.getUnwatchedGames();
+        Set<String> names = new HashSet<String>(changedGames);
+        for (Map.Entry<String, Long> deferred : deferredGames.entrySet()) {
+            if (deferred.getValue() <= now) {
+                names.add(deferred.getKey());
+                deferredGames.remove(deferred.getKey());
+            }
+        }
+        verifyNames.addAll(changedSyncDirs);
+        changedGames.clear();
+        changedSyncDirs.clear();
+
+        List<GameInfo> games = new LinkedList<GameInfo>();
+        for (GameInfo game : gameList) {
+            String name = game.getName();
+            boolean watched = unwatched != null && !unwatched.contains(name);
+
+            if (scanScheduler.isDue(name, watched ? WATCHED_SCAN_INTERVAL : HOT_SCAN_INTERVAL, now)) {
+                names.add(name);
+                if (verifyDue) {
+                    verifyNames.add(name);
+                }
+            }
+            if (names.contains(name)) {
+                games.add(game);
+                scanScheduler.scanned(name, now);
+            }
+        }
+        return games;
+    }
+
+    /**
+     * Returns whether a scan should be done right away instead of waiting for
+     * the rest of the timestep.
+     * 
+     * @return True if a watched directory has changed or a game has exited.
+     */
+    private boolean hasPendingChanges() {
+        return running && (rescanAll || !changedGames.isEmpty());
     }
 
     /**
-     * Returns whether the save folder has this file or a newer version from it,
-     * or not.
+     * Returns how long to wait until a game with deferred save files has to
+     * be scanned again. Games with work left over from the previous timestep
+     * are due right away.
      * 
-     * @return True of the save folder contains this file or a newer version of
-     *         it, otherwise false.
+     * @return The time in milliseconds, or Long.MAX_VALUE if no game has
+     *         deferred files.
      */
-    private static boolean needsNewerFile(GameInfo game, String[] saveDirPaths, File syncSaveFile) {
-        if (saveDirPaths == null) {
-            return true;
+    private long timeUntilDeferredScan() {
+        if (!running) {
+            return Long.MAX_VALUE;
         }
+        if (workBudget.hasCarryOver()) {
+            return 0;
+        }
+        if (directoryWatcher == null) {
+            return Long.MAX_VALUE;
+        }
+
+        long wait = Long.MAX_VALUE;
+        long now = System.currentTimeMillis();
+        for (long due : deferredGames.values()) {
+            wait = Math.min(wait, due - now);
+        }
+        return wait;
+    }
+
+    /**
+     * Performs a syncing timestep. The synchronizer waits for tasks until the
+     * deadline of the timestep, 4 seconds after it began, and then scans.
+     * The wait ends early as soon as the synchronizer is started, stopped or
+     * restarted, a watched directory changes, a game exits or deferred save
+     * files may have become stable. Tasks that stop or exit the synchronizer
+     * during the scan cancel it, see syncGames().
+     * 
+     * @throws InterruptedException
+     * @returns Whether to keep running or not.
+     */
+    private boolean doTimestep() throws InterruptedException {
+        final long MAX_WAIT = 4000;
+        long deadline = System.currentTimeMillis() + MAX_WAIT;
+        long dueTime;
+
+        while (true) {
+            long now = System.currentTimeMillis();
+            long remaining = Math.min(deadline - now, timeUntilDeferredScan());
+
+            // always look at the queue, also when games with work left are
+            // due right away
+            SynchronizerTask task = syncQueue.poll(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+
+            if (task == null) {
+                if (remaining <= 0) {
+                    dueTime = Math.min(now, deadline);
+                    break;
+                }
+                continue;
+            }
+
+            if (!task.perform(this)) {
+                systrayQueue.put(new ExitTask());
+                return false;
+            }
 
-        for (int i = 0; i < saveDirPaths.length; i++) {
-            File saveFile = new File(game.getSavePath() + File.separator + saveDirPaths[i]);
+            if (isControlTask(task) || hasPendingChanges()) {
+                dueTime = System.currentTimeMillis();
 
-            if (saveFile.getName().equals(syncSaveFile.getName())) {
-                if (saveFile.exists()) {
-                    if (saveFile.lastModified() < syncSaveFile.lastModified()) {
-                        return true;
-                    } else {
+                // also take the tasks that are already queued
+                while ((task = syncQueue.poll()) != null) {
+                    if (!task.perform(this)) {
+                        systrayQueue.put(new ExitTask());
                         return false;
                     }
                 }
+                break;
+            }
+        }
 
-                return true;
+        if (running) {
+            Set<String> verifyNames = new HashSet<String>();
+            List<GameInfo> games = takeGamesToScan(verifyNames);
+            syncGames(games, verifyNames);
+            saveHashCache();
+            saveHistory();
+            if (!dryRun && !workBudget.isCancelled()) {
+                collectGarbage();
             }
+            flushStorage();
+            recordTickLatency(System.currentTimeMillis() - dueTime);
         }
 
         return true;
     }
 
     /**
-     * Receives saves from the sync folder.
+     * Records how long a timestep took from the moment its scan was due until
+     * it was done.
+     * 
+     * @param latency The latency in milliseconds.
      */
-    private void receiveSaves(GameInfo game) {
-        File syncDir = new File(syncFolderPath + File.separatorChar + game.getName());
-        File saveDir = new File(game.getSavePath());
+    private void recordTickLatency(long latency) {
+        lastTickLatency = latency;
+        maxTickLatency = Math.max(maxTickLatency, latency);
+    }
+
+    /**
+     * Returns how long the last timestep took from the moment its scan was
+     * due until it was done, which is how long a change may wait before it
+     * is synchronized, on top of the time between timesteps.
+     * 
+     * @return The latency in milliseconds, or 0 before the first scan.
+     */
+    public long getTickLatency() {
+        return lastTickLatency;
+    }
 
-        String[] saveDirPaths = saveDir.list();
-        String[] syncDirPaths = syncDir.list();
+    /**
+     * Returns the highest latency of all timesteps so far.
+     * 
+     * @return The latency in milliseconds.
+     * @see #getTickLatency()
+     */
+    public long getMaxTickLatency() {
+        return maxTickLatency;
+    }
 
-        if (syncDirPaths != null) {
-            for (int i = 0; i < syncDirPaths.length; i++) {
-                File syncSaveFile = new File(syncDir.getAbsolutePath() + File.separator + syncDirPaths[i]);
+    /**
+     * Writes the hash cache if hashes were added.
+     */
+    private void saveHashCache() {
+        try {
+            hashCache.save();
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not save hash cache " + CrowSync.HASH_CACHE_FILENAME, e);
+        }
+    }
 
-                if (needsNewerFile(game, saveDirPaths, syncSaveFile)) {
-                    if (!WindowsUtil.copyFileToDir(syncSaveFile, new File(game.getSavePath()))) {
-                        throw new CrowSyncException("Could not copy file " + syncSaveFile.getAbsolutePath() + " to directory "
-                                + game.getSavePath());
-                    }
+    /**
+     * Writes the sync history if it has changed.
+     */
+    private void saveHistory() {
+        try {
+            syncHistory.save();
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not save sync history " + CrowSync.HISTORY_FILENAME, e);
+        }
+    }
 
-                    sendSystrayTask(new ReceivedTask(game.getName(), syncSaveFile.getAbsolutePath()));
-                }
-            }
+    /**
+     * Makes the changes to the sync folder of this timestep durable, for
+     * storage that batches them.
+     */
+    private void flushStorage() {
+        try {
+            storage.flush();
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not write the sync folder " + storage.toDisplayPath(""), e);
         }
     }
 
     /**
-     * Sends saves to the sync folder.
+     * Lets the sync layout remove unused data, at most once an hour.
      */
-    private void sendSaves(GameInfo game) {
-        if (OSUtil.isWindows()) {
-            Set<String> activeProcesses = WindowsUtil.listRunningProcesses();
+    private void collectGarbage() {
+        final long GARBAGE_COLLECTION_INTERVAL = 60 * 60 * 1000;
+        long now = System.currentTimeMillis();
 
-            if (activeProcesses.contains((new File(game.getExecutablePath()).getName()))) {
-                return;
+        if (now - lastGarbageCollection >= GARBAGE_COLLECTION_INTERVAL) {
+            lastGarbageCollection = now;
+            try {
+                syncLayout.collectGarbage();
+            } catch (IOException e) {
+                throw new CrowSyncException("Could not clean up the sync folder " + syncFolderPath, e);
             }
         }
+    }
 
-        // first make a list of the current files and files in the sync folder
-        File saveDir = new File(game.getSavePath());
-        File syncDir = new File(syncFolderPath + File.separatorChar + game.getName());
+    /**
+     * Synchronizes games on the worker pool, in two stages. First a plan is
+     * made for every game, and only when all games are planned are the plans
+     * carried out. Every game is planned and carried out by a single worker,
+     * but different games are handled at the same time. Notifications are
+     * still sent to the systray in the order of the game list. In dry-run
+     * mode the plans are only written to the plan file.
+     * 
+     * The plans are carried out within the work budget of the timestep, and
+     * games with work left are scanned again right away. While waiting for
+     * the workers, a Start, Stop or Exit task on the queue cancels the
+     * timestep; the workers then stop at the next operation.
+     * 
+     * Games whose generation was moved by another machine are synchronized
+     * as well, however long ago they last changed here.
+     * 
+     * @param games The games to synchronize.
+     * @param verifyNames The names of the games whose sync directories must
+     *            be compared with their manifest.
+     */
+    private void syncGames(List<GameInfo> games, Set<String> verifyNames) {
+        workBudget.beginTimestep();
+        processTable.newCycle();
+        try {
+            generations.refresh();
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not read the generations in " + syncFolderPath, e);
+        }
 
-        syncDir.mkdir();
-        if (!syncDir.isDirectory()) {
-            throw new CrowSyncException("Could not make directory " + saveDir.getAbsolutePath());
+        games = addMovedGames(games);
+        if (!games.isEmpty()) {
+            throttleCopies();
         }
 
-        String[] saveDirPaths = saveDir.list();
-        String[] syncDirPaths = syncDir.list();
+        List<Future<SyncPlan>> planned = new ArrayList<Future<SyncPlan>>(games.size());
 
-        if (saveDirPaths == null) {
-            return;
+        for (final GameInfo game : games) {
+            final boolean verify = verifyNames.contains(game.getName());
+
+            planned.add(syncExecutor.submit(new Callable<SyncPlan>() {
+                @Override
+                public SyncPlan call() {
+                    if (deferIfCancelled(game)) {
+                        return null;
+                    }
+                    return planGame(game, verify);
+                }
+            }));
         }
 
-        List<File> saveFiles = new LinkedList<File>();
-        List<File> syncFiles = new LinkedList<File>();
+        final List<SyncPlan> plans = new ArrayList<SyncPlan>(games.size());
+        CrowSyncException failure = null;
 
-        for (int i = 0; i < saveDirPaths.length; i++) {
-            File file = new File(saveDir.getAbsolutePath() + File.separator + saveDirPaths[i]);
-            saveFiles.add(file);
-        }
-        if (syncDirPaths != null) {
-            for (int i = 0; i < syncDirPaths.length; i++) {
-                File file = new File(syncDir.getAbsolutePath() + File.separator + syncDirPaths[i]);
-                syncFiles.add(file);
+        for (int i = 0; i < planned.size(); i++) {
+            try {
+                plans.add(waitFor(planned.get(i)));
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = failureOf(games.get(i), e);
+                }
+            } catch (InterruptedException e) {
+                throw new CrowSyncException("Interrupted while synchronizing " + games.get(i).getName(), e);
             }
         }
 
-        // sort by all save files date
-        Collections.sort(saveFiles, new Comparator<File>() {
-            @Override
-            public int compare(File f1, File f2)
-            {
-                return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
-            }
-        });
+        if (failure != null) {
+            throw failure;
+        }
+
+        if (dryRun) {
+            writePlans(plans);
+            return;
+        }
 
-        // remove all except a few
-        int toDelete = saveFiles.size() - maxGameSaves;
-        if (toDelete > 0) {
-            for (int i = 0; i < toDelete; i++) {
-                saveFiles.remove(0);
+        copiesPlanned = 0;
+        copiesDone.set(0);
+        int busyGames = 0;
+        for (SyncPlan plan : plans) {
+            if (plan != null) {
+                copiesPlanned += plan.countCopies();
+                // recording costs nothing, so only games with work share
+                // the budget
+                busyGames += plan.hasWork() ? 1 : 0;
             }
         }
 
-        List<File> toCopySaveFiles = new LinkedList<File>(saveFiles);
-        // now remove those in this list that already exist
-        Iterator<File> iter = toCopySaveFiles.iterator();
-        while (iter.hasNext()) {
-            File saveFile = iter.next();
-            for (File syncFile : syncFiles) {
-                if (saveFile.getName().equals(syncFile.getName())) {
-                    if (saveFile.lastModified() >= syncFile.lastModified()) {
-                        iter.remove();
+        workBudget.divide(busyGames);
+        List<Allowance> allowances = new ArrayList<Allowance>(games.size());
+        List<Future<List<SystrayTask>>> results = new ArrayList<Future<List<SystrayTask>>>(games.size());
+
+        for (int i = 0; i < games.size(); i++) {
+            final GameInfo game = games.get(i);
+            final SyncPlan plan = plans.get(i);
+            final Allowance allowance = plan == null ? null : workBudget.allow(game.getName());
+
+            allowances.add(allowance);
+            results.add(syncExecutor.submit(new Callable<List<SystrayTask>>() {
+                @Override
+                public List<SystrayTask> call() {
+                    if (plan == null) {
+                        return new LinkedList<SystrayTask>();
                     }
+                    return executePlan(game, plan, allowance);
+                }
+            }));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                for (SystrayTask task : waitFor(results.get(i))) {
+                    sendSystrayTask(task);
                 }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = failureOf(games.get(i), e);
+                }
+            } catch (InterruptedException e) {
+                throw new CrowSyncException("Interrupted while synchronizing " + games.get(i).getName(), e);
             }
         }
 
-        // sync them now
-        for (File saveFile : toCopySaveFiles) {
-            if (!WindowsUtil.copyFileToDir(saveFile, syncDir)) {
-                throw new CrowSyncException("Could not copy file " + saveFile.getAbsolutePath() + " to directory "
-                        + syncDir.getAbsolutePath());
+        for (int i = 0; i < games.size(); i++) {
+            String gameName = games.get(i).getName();
+            Allowance allowance = allowances.get(i);
+
+            workBudget.finish(gameName, allowance);
+            if (allowance != null && allowance.isExhausted()) {
+                deferGame(gameName, System.currentTimeMillis());
             }
+        }
+
+        if (copiesPlanned > 0) {
+            // some copies may have been skipped for lack of a lease or
+            // budget
+            sendSystrayTask(new ProgressTask(copiesPlanned, copiesPlanned));
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Adds the games whose sync directories have been written by another
+     * machine since this machine last looked at them, and makes them hot.
+     * Without a directory watcher, the generations are the only way to
+     * notice that.
+     * 
+     * @param games The games that are going to be scanned anyway, in the
+     *            order of the game list.
+     * @return All games to scan, in the order of the game list.
+     */
+    private List<GameInfo> addMovedGames(List<GameInfo> games) {
+        if (!generations.exists()) {
+            return games;
+        }
+
+        Set<GameInfo> taken = new HashSet<GameInfo>(games);
+        List<GameInfo> result = new ArrayList<GameInfo>(games.size());
+        long now = System.currentTimeMillis();
 
-            sendSystrayTask(new SentTask(game.getName(), saveFile.getAbsolutePath()));
+        for (GameInfo game : gameList) {
+            Long processed = processedGenerations.get(game.getName());
+
+            if (taken.contains(game)) {
+                result.add(game);
+            } else if (processed != null && processed != generations.get(game.getName())) {
+                scanScheduler.changed(game.getName(), now);
+                scanScheduler.scanned(game.getName(), now);
+                result.add(game);
+            }
         }
+        return result;
+    }
 
-        // now remove files in the sync folder that we don't need any longer
-        for (File syncFile : syncFiles) {
-            boolean needsDeletion = true;
+    /**
+     * Waits for a worker, and cancels the timestep as soon as a task that
+     * starts, stops or exits the synchronizer is queued. Copies are slowed
+     * down as soon as a game is reported to have started.
+     * 
+     * @param future The result of the worker.
+     * @return The result.
+     * @throws ExecutionException If the worker failed.
+     * @throws InterruptedException
+     */
+    private <T> T waitFor(Future<T> future) throws ExecutionException, InterruptedException {
+        final long POLL_INTERVAL = 10;
 
-            for (File saveFile : saveFiles) {
-                if (syncFile.getName().equals(saveFile.getName())) {
-                    needsDeletion = false;
+        while (true) {
+            try {
+                return future.get(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (!workBudget.isCancelled() && hasControlTask()) {
+                    workBudget.cancel();
+                }
+                if (hasLaunchTask()) {
+                    IoThrottle.setLimits(playingCopyRateLimit, playingCopyOpsLimit);
                 }
             }
+        }
+    }
 
-            if (needsDeletion) {
-                syncFile.delete();
-                sendSystrayTask(new RemovedTask(game.getName(), syncFile.getAbsolutePath()));
+    /**
+     * Returns whether a task that starts, stops or exits the synchronizer is
+     * waiting on the queue.
+     * 
+     * @return True if the current timestep should be cut short.
+     */
+    private boolean hasControlTask() {
+        for (SynchronizerTask task : syncQueue) {
+            if (isControlTask(task)) {
+                return true;
             }
         }
+        return false;
+    }
 
+    /**
+     * Returns whether a task that reports a started game is waiting on the
+     * queue.
+     * 
+     * @return True if copies should be slowed down right away.
+     */
+    private boolean hasLaunchTask() {
+        for (SynchronizerTask task : syncQueue) {
+            if (task instanceof GameLaunchedTask) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Performs a syncing timestep. This will be 1 second plus additional time
-     * required to perform filesystem tasks.
+     * Returns whether a task starts, stops or exits the synchronizer.
      * 
-     * @throws InterruptedException
-     * @returns Whether to keep running or not.
+     * @param task The task.
+     * @return True if it should be handled right away.
      */
-    private boolean doTimestep() throws InterruptedException {
-        final long MAX_WAIT = 4000;
-        long beginTime = System.currentTimeMillis();
+    private static boolean isControlTask(SynchronizerTask task) {
+        return task instanceof StartTask || task instanceof StopTask || task instanceof SynchronizerTask.ExitTask;
+    }
 
-        for (long elapsed = 0; elapsed < MAX_WAIT;) {
-            long remaining = MAX_WAIT - elapsed;
-            SynchronizerTask task = syncQueue.poll(remaining, TimeUnit.MILLISECONDS);
+    /**
+     * Defers a game to the next timestep if the current one was cancelled.
+     * 
+     * @param game The game that is being scanned.
+     * @return True if the scan must stop.
+     */
+    private boolean deferIfCancelled(GameInfo game) {
+        if (!workBudget.isCancelled()) {
+            return false;
+        }
+        deferGame(game.getName(), System.currentTimeMillis());
+        return true;
+    }
 
-            if (task != null) {
-                if (!task.perform(this)) {
-                    systrayQueue.put(new ExitTask());
-                    return false;
-                }
+    /**
+     * Slows copies down while any of the games is running, so that the game
+     * doesn't stutter, and lets them run at full speed otherwise.
+     */
+    private void throttleCopies() {
+        for (GameInfo game : gameList) {
+            if (processTable.contains(game.getExecutablePath())) {
+                IoThrottle.setLimits(playingCopyRateLimit, playingCopyOpsLimit);
+                return;
             }
-            elapsed += (System.currentTimeMillis() - beginTime);
         }
+        IoThrottle.setLimits(copyRateLimit, copyOpsLimit);
+    }
 
-        if (running) {
-            for (GameInfo game : gameList) {
-                // createSyncDir(game);
-                receiveSaves(game);
-                sendSaves(game);
+    /**
+     * Returns the exception to report for a game that a worker failed on.
+     * 
+     * @param game The game.
+     * @param e The exception thrown by the worker.
+     * @return The exception to throw.
+     */
+    private static CrowSyncException failureOf(GameInfo game, ExecutionException e) {
+        Throwable cause = e.getCause();
+
+        if (cause instanceof CrowSyncException) {
+            return (CrowSyncException) cause;
+        } else if (cause instanceof Exception) {
+            return new CrowSyncException("Could not synchronize " + game.getName(), (Exception) cause);
+        } else {
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Writes the plans that do anything to the plan file, replacing the plans
+     * of the previous timestep. Nothing is written if no plan does anything.
+     * 
+     * @param plans The plans, with null for games without a save directory.
+     */
+    private void writePlans(List<SyncPlan> plans) {
+        StringBuilder builder = new StringBuilder();
+        int copies = 0;
+
+        for (SyncPlan plan : plans) {
+            if (plan != null && plan.hasWork()) {
+                builder.append(plan);
+                copies += plan.countCopies();
             }
         }
 
-        return true;
+        if (builder.length() == 0) {
+            return;
+        }
+
+        Writer writer = null;
+
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(CrowSync.PLAN_FILENAME), "UTF-8");
+            writer.write("# " + CrowSync.PROGRAM_NAME + " dry run at " + new Date() + ", " + copies + " copies\n");
+            writer.write(builder.toString());
+            writer.close();
+            writer = null;
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not write plan file " + CrowSync.PLAN_FILENAME, e);
+        } finally {
+            FileUtil.closeQuietly(writer);
+        }
     }
 
     /**
@@ -274,11 +1552,22 @@ public class CrowSyncSynchronizer implements Runnable {
      */
     @Override
     public void run() {
+        hashCache.load();
+        syncHistory.load();
+
         try {
             while (doTimestep()) {
             }
+            stopWatching();
+            stopMonitoring();
+            stopExecutor();
+            closeStorage();
             systrayQueue.put(new ExitTask());
         } catch (final Exception e) {
+            stopWatching();
+            stopMonitoring();
+            stopExecutor();
+            FileUtil.closeQuietly(storage);
             EventQueue.invokeLater(new Runnable() {
                 @Override
                 public void run() {
@@ -320,6 +1609,72 @@ public class CrowSyncSynchronizer implements Runnable {
         this.running = running;
     }
 
+    /**
+     * Marks games as changed so that they will be scanned during the next
+     * timestep.
+     * 
+     * @param gameNames The names of the changed games.
+     * @param syncDirNames The names of the games of which the sync directory
+     *            has changed.
+     */
+    public void markChanged(Set<String> gameNames, Set<String> syncDirNames) {
+        long now = System.currentTimeMillis();
+
+        for (String gameName : gameNames) {
+            scanScheduler.changed(gameName, now);
+        }
+        for (String gameName : syncDirNames) {
+            scanScheduler.changed(gameName, now);
+        }
+        changedGames.addAll(gameNames);
+        changedSyncDirs.addAll(syncDirNames);
+    }
+
+    /**
+     * Makes the next timestep scan a game that has just exited. The process
+     * snapshot is shared with the game process monitor, so it doesn't list
+     * the game as running any more.
+     * 
+     * @param gameName The name of the game.
+     */
+    public void gameExited(String gameName) {
+        scanScheduler.changed(gameName, System.currentTimeMillis());
+        changedGames.add(gameName);
+    }
+
+    /**
+     * Makes a game that has just been started hot, so that it is scanned
+     * often while it is played, and slows copies down while it runs.
+     * 
+     * @param gameName The name of the game.
+     */
+    public void gameLaunched(String gameName) {
+        scanScheduler.changed(gameName, System.currentTimeMillis());
+        IoThrottle.setLimits(playingCopyRateLimit, playingCopyOpsLimit);
+    }
+
+    /**
+     * Makes the next timestep scan every game right away, and makes every
+     * game hot.
+     */
+    public void syncNow() {
+        long now = System.currentTimeMillis();
+
+        if (gameList != null) {
+            for (GameInfo game : gameList) {
+                scanScheduler.changed(game.getName(), now);
+            }
+        }
+        requestRescan();
+    }
+
+    /**
+     * Makes the next timestep scan every game.
+     */
+    public void requestRescan() {
+        rescanAll = true;
+    }
+
     /**
      * Makes the synchronizer load or reload its cached configuration.
      * 
@@ -329,6 +1684,189 @@ public class CrowSyncSynchronizer implements Runnable {
     public void loadConfig(ConfigFile configFile, GameFile gameFile) {
         syncFolderPath = new String(configFile.getSyncFolderPath());
         maxGameSaves = configFile.getMaxSavesPerGame();
+        machineId = configFile.getMachineId();
         gameList = new LinkedList<GameInfo>(gameFile.getGameList());
+        releaseLeases();
+        syncDirectories.clear();
+        openStorage(configFile);
+        generations = new GenerationFile(storage);
+        processedGenerations.clear();
+        if (ConfigFile.LAYOUT_CHUNKS.equals(configFile.getSyncLayout())) {
+            syncLayout = new ChunkedLayout(storage);
+        } else {
+            syncLayout = new PlainLayout(storage, copyEngine, configFile.getCompressionLevel());
+        }
+        saveStabilizer.clear();
+        saveStabilizer.setQuietPeriod(configFile.getQuietPeriod());
+        deferredGames.clear();
+        processTable.setTimeToLive(configFile.getProcessTableTtl());
+        workBudget.clear();
+        workBudget.setLimits(configFile.getCycleOpsBudget(), configFile.getCycleSizeBudget() * 1024L);
+        verifyCopies = configFile.isVerifyCopies();
+        dryRun = configFile.isDryRun();
+        copyRateLimit = configFile.getCopyRateLimit() * 1024L;
+        copyOpsLimit = configFile.getCopyOpsLimit();
+        playingCopyRateLimit = configFile.getPlayingCopyRateLimit() * 1024L;
+        playingCopyOpsLimit = configFile.getPlayingCopyOpsLimit();
+        if (ConfigFile.DURABILITY_NONE.equals(configFile.getDurability())) {
+            Durability.setMode(Durability.NONE);
+        } else if (ConfigFile.DURABILITY_FILE.equals(configFile.getDurability())) {
+            Durability.setMode(Durability.FILE);
+        } else {
+            Durability.setMode(Durability.GROUP);
+        }
+
+        int threads = Math.max(1, configFile.getSyncThreads());
+        if (syncExecutor == null || syncThreads != threads) {
+            stopExecutor();
+            startExecutor(threads);
+        }
+
+        stopWatching();
+        if (configFile.isWatchDirectories()) {
+            startWatching();
+        }
+
+        stopMonitoring();
+        if (configFile.isMonitorGames()) {
+            startMonitoring();
+        }
+        requestRescan();
+    }
+
+    /**
+     * Opens the configured storage of the sync folder, closing the one that
+     * was used before. Storage given to the constructor is kept.
+     * 
+     * @param configFile The config file.
+     */
+    private void openStorage(ConfigFile configFile) {
+        if (fixedStorage != null) {
+            storage = fixedStorage;
+            return;
+        }
+
+        // the watcher may still use the old storage
+        stopWatching();
+        closeStorage();
+
+        File syncFolder = new File(syncFolderPath);
+        if (ConfigFile.STORAGE_ZIP.equals(configFile.getSyncStorage())) {
+            try {
+                storage = new ZipBackend(new File(syncFolder, ZipBackend.ARCHIVE_NAME));
+            } catch (IOException e) {
+                throw new CrowSyncException("Could not open the sync archive in " + syncFolderPath, e);
+            }
+        } else {
+            storage = new LocalBackend(syncFolder);
+        }
+    }
+
+    /**
+     * Gives up the leases on all sync directories, so that other machines
+     * don't have to wait for them to expire.
+     */
+    private void releaseLeases() {
+        for (SyncDirectory syncDir : syncDirectories.values()) {
+            syncDir.releaseLease();
+        }
+    }
+
+    /**
+     * Closes the storage of the sync folder, if any.
+     */
+    private void closeStorage() {
+        if (storage == null) {
+            return;
+        }
+
+        releaseLeases();
+        try {
+            storage.close();
+        } catch (IOException e) {
+            throw new CrowSyncException("Could not close the sync folder " + storage.toDisplayPath(""), e);
+        } finally {
+            storage = null;
+        }
+    }
+
+    /**
+     * Starts watching the save and sync directories of all games. If no watch
+     * service is available, every game will be scanned every timestep.
+     */
+    private void startWatching() {
+        try {
+            directoryWatcher = new DirectoryWatcher(syncQueue, gameList, storage);
+        } catch (IOException e) {
+            directoryWatcher = null;
+            return;
+        }
+
+        Thread watcherThread = new Thread(directoryWatcher, "CrowSync directory watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    /**
+     * Starts monitoring the executables of all games.
+     */
+    private void startMonitoring() {
+        gameProcessMonitor = new GameProcessMonitor(syncQueue, gameList, processTable);
+
+        Thread monitorThread = new Thread(gameProcessMonitor, "CrowSync process monitor");
+        monitorThread.setDaemon(true);
+        monitorThread.start();
+    }
+
+    /**
+     * Starts the pool of worker threads that synchronize games.
+     * 
+     * @param threads The number of worker threads, at least 1.
+     */
+    private void startExecutor(int threads) {
+        syncThreads = threads;
+        saveHasher = new SaveHasher(hashCache);
+        syncExecutor = Executors.newFixedThreadPool(syncThreads, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CrowSync worker " + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Stops the worker pool, if any.
+     */
+    private void stopExecutor() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+            syncExecutor = null;
+            saveHasher.close();
+            saveHasher = null;
+        }
+    }
+
+    /**
+     * Stops the game process monitor, if any.
+     */
+    private void stopMonitoring() {
+        if (gameProcessMonitor != null) {
+            gameProcessMonitor.close();
+            gameProcessMonitor = null;
+        }
+    }
+
+    /**
+     * Stops the directory watcher, if any.
+     */
+    private void stopWatching() {
+        if (directoryWatcher != null) {
+            directoryWatcher.close();
+            directoryWatcher = null;
+        }
     }
 }
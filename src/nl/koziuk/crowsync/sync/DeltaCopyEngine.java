@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.koziuk.crowsync.util.FileUtil;
+import nl.koziuk.crowsync.util.IoThrottle;
+import nl.koziuk.crowsync.util.XxHash64;
+
+/**
+ * Copies large files by only rewriting the parts that changed, like rsync.
+ * The previous version of the file in the destination directory is split into
+ * blocks with a weak and a strong checksum. A rolling weak checksum over the
+ * new version finds the blocks that are still there, also if they moved.
+ * 
+ * The new version is built in a temporary file in one pass, taking the
+ * matched blocks from the old file and only the changed ranges from the new
+ * version. The temporary file replaces the old one when it is done, so other
+ * readers never see a half-updated file and the old file stays in place if
+ * anything goes wrong.
+ * 
+ * Because the whole file is still written, and both versions are read in
+ * full to find the matching blocks, this does more I/O than a plain copy. It
+ * only pays off when reading the new version is much slower than reading the
+ * old one, so it is not the default copy engine.
+ * 
+ * Small files, new files and files that changed too much are copied in full
+ * by another copy engine.
+ * 
+ * @author marcin
+ */
+public class DeltaCopyEngine implements CopyEngine {
+    private static final int BLOCK_SIZE = 16 * 1024;
+    private static final long MIN_DELTA_SIZE = 1024 * 1024;
+    private static final double MAX_DELTA_RATIO = 0.5;
+
+    // bytes of the new version that are kept in memory while matching
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
+    private final CopyEngine fullCopyEngine;
+
+    /**
+     * A range of the new version, which is either written from the source
+     * file or copied from the old version.
+     */
+    private static class Op {
+        final long target;
+        final long length;
+        final long oldOffset;
+
+        Op(long target, long length, long oldOffset) {
+            this.target = target;
+            this.length = length;
+            this.oldOffset = oldOffset;
+        }
+
+        boolean isLiteral() {
+            return oldOffset < 0;
+        }
+    }
+
+    /**
+     * The checksums of the blocks of the old version.
+     */
+    private static class Signature {
+        private final Map<Integer, List<Integer>> blocksByWeak = new HashMap<Integer, List<Integer>>();
+        private final List<Long> strong = new ArrayList<Long>();
+
+        // quick test on the low bits of the weak checksum before the map
+        private final BitSet filter = new BitSet(1 << 20);
+
+        void add(int weak, long strongHash) {
+            List<Integer> blocks = blocksByWeak.get(weak);
+            if (blocks == null) {
+                blocks = new ArrayList<Integer>(1);
+                blocksByWeak.put(weak, blocks);
+            }
+            blocks.add(strong.size());
+            strong.add(strongHash);
+            filter.set(weak & 0xfffff);
+        }
+
+        /**
+         * Finds an old block with the same content as the new version at an
+         * offset, preferring the block at the same offset.
+         * 
+         * @return The offset of the old block, or -1.
+         */
+        long find(int weak, SourceWindow window, long offset) throws IOException {
+            if (!filter.get(weak & 0xfffff)) {
+                return -1;
+            }
+
+            List<Integer> blocks = blocksByWeak.get(weak);
+            if (blocks == null) {
+                return -1;
+            }
+
+            long hash = window.hash(offset, BLOCK_SIZE);
+            long found = -1;
+
+            for (int block : blocks) {
+                long oldOffset = (long) block * BLOCK_SIZE;
+
+                if (strong.get(block) == hash) {
+                    if (oldOffset == offset) {
+                        return oldOffset;
+                    } else if (found < 0) {
+                        found = oldOffset;
+                    }
+                }
+            }
+
+            return found;
+        }
+    }
+
+    /**
+     * A window on the new version of the file, which moves forward while
+     * matching.
+     */
+    private static class SourceWindow {
+        private final FileChannel channel;
+        private final long size;
+        private final byte[] data = new byte[WINDOW_SIZE];
+        private long base = 0;
+        private int length = 0;
+
+        SourceWindow(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        int get(long offset) throws IOException {
+            if (offset >= base + length) {
+                // keep the block before the offset, it is read while rolling
+                fill(Math.max(0, offset - BLOCK_SIZE));
+            } else if (offset < base) {
+                fill(offset);
+            }
+            return data[(int) (offset - base)] & 0xff;
+        }
+
+        long hash(long offset, int len) throws IOException {
+            if (offset < base || offset + len > base + length) {
+                fill(offset);
+            }
+
+            XxHash64 hash = new XxHash64();
+            hash.update(data, (int) (offset - base), len);
+            return hash.getValue();
+        }
+
+        private void fill(long offset) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, (int) Math.min(WINDOW_SIZE, size - offset));
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("File shrunk while copying");
+                }
+            }
+
+            base = offset;
+            length = buffer.position();
+        }
+    }
+
+    /**
+     * Creates a delta copy engine that copies files with a NioCopyEngine if a
+     * delta is not worth it.
+     */
+    public DeltaCopyEngine() {
+        this(new NioCopyEngine());
+    }
+
+    /**
+     * Creates a delta copy engine.
+     * 
+     * @param fullCopyEngine The engine to copy files with if a delta is not
+     *            worth it.
+     */
+    public DeltaCopyEngine(CopyEngine fullCopyEngine) {
+        this.fullCopyEngine = fullCopyEngine;
+    }
+
+    /**
+     * Copies a file into a directory, only reading the changed blocks from the
+     * file if the directory has an older version of it.
+     * 
+     * @return The number of bytes written.
+     */
+    @Override
+    public long copyFileToDir(File sourceFile, File destDir) throws IOException {
+        if (!sourceFile.isFile() || !destDir.isDirectory()) {
+            throw new IllegalArgumentException("Cannot copy " + sourceFile + " to " + destDir);
+        }
+
+        File destFile = new File(destDir, sourceFile.getName());
+        long lastModified = sourceFile.lastModified();
+
+        if (sourceFile.length() < MIN_DELTA_SIZE || destFile.length() < MIN_DELTA_SIZE) {
+            return fullCopyEngine.copyFileToDir(sourceFile, destDir);
+        }
+
+        FileChannel in = null;
+
+        try {
+            in = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ);
+            long size = in.size();
+
+            List<Op> ops = match(new SourceWindow(in, size), signature(destFile), size);
+            long delta = 0;
+            for (Op op : ops) {
+                if (op.isLiteral()) {
+                    delta += op.length;
+                }
+            }
+
+            if (delta > size * MAX_DELTA_RATIO) {
+                FileUtil.closeQuietly(in);
+                in = null;
+                return fullCopyEngine.copyFileToDir(sourceFile, destDir);
+            }
+
+            return patch(in, ops, size, destFile, lastModified);
+        } finally {
+            FileUtil.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Computes the checksums of all whole blocks of the old version.
+     */
+    private static Signature signature(File file) throws IOException {
+        Signature signature = new Signature();
+        FileChannel channel = null;
+
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+
+            while (true) {
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                }
+                if (buffer.hasRemaining()) {
+                    // the last partial block is never matched
+                    break;
+                }
+
+                byte[] block = buffer.array();
+                XxHash64 hash = new XxHash64();
+                hash.update(block, 0, BLOCK_SIZE);
+                signature.add(weakChecksum(block), hash.getValue());
+            }
+        } finally {
+            FileUtil.closeQuietly(channel);
+        }
+
+        return signature;
+    }
+
+    /**
+     * Computes the weak checksum of a whole block.
+     */
+    private static int weakChecksum(byte[] block) {
+        int a = 0;
+        int b = 0;
+
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            int x = block[i] & 0xff;
+            a += x;
+            b += (BLOCK_SIZE - i) * x;
+        }
+
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    /**
+     * Rolls a window of one block over the new version and turns it into a
+     * list of operations, in order of offset.
+     */
+    private static List<Op> match(SourceWindow window, Signature signature, long size) throws IOException {
+        List<Op> ops = new ArrayList<Op>();
+        long offset = 0;
+        long literalStart = 0;
+        int a = 0;
+        int b = 0;
+        boolean rolling = false;
+
+        while (offset + BLOCK_SIZE <= size) {
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    int x = window.get(offset + i);
+                    a += x;
+                    b += (BLOCK_SIZE - i) * x;
+                }
+                a &= 0xffff;
+                b &= 0xffff;
+                rolling = true;
+            }
+
+            long oldOffset = signature.find((b << 16) | a, window, offset);
+
+            if (oldOffset >= 0) {
+                if (offset > literalStart) {
+                    ops.add(new Op(literalStart, offset - literalStart, -1));
+                }
+
+                Op last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+                if (last != null && !last.isLiteral() && last.oldOffset + last.length == oldOffset) {
+                    // the old blocks follow each other, copy them at once
+                    ops.set(ops.size() - 1, new Op(last.target, last.length + BLOCK_SIZE, last.oldOffset));
+                } else {
+                    ops.add(new Op(offset, BLOCK_SIZE, oldOffset));
+                }
+                offset += BLOCK_SIZE;
+                literalStart = offset;
+                rolling = false;
+            } else {
+                if (offset + BLOCK_SIZE < size) {
+                    int out = window.get(offset);
+                    int in = window.get(offset + BLOCK_SIZE);
+                    a = (a - out + in) & 0xffff;
+                    b = (b - BLOCK_SIZE * out + a) & 0xffff;
+                }
+                offset++;
+            }
+        }
+
+        if (size > literalStart) {
+            ops.add(new Op(literalStart, size - literalStart, -1));
+        }
+
+        return ops;
+    }
+
+    /**
+     * Builds the new version of the file from the operations in a temporary
+     * file, and replaces the old version with it.
+     * 
+     * @return The number of bytes written.
+     */
+    private static long patch(FileChannel in, List<Op> ops, long size, File destFile, long lastModified)
+            throws IOException {
+        File tempFile = FileUtil.tempFileFor(destFile);
+        IoThrottle.operation();
+
+        FileChannel old = null;
+        FileChannel out = null;
+        boolean done = false;
+        long written = 0;
+
+        try {
+            old = FileChannel.open(destFile.toPath(), StandardOpenOption.READ);
+            out = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+
+            for (Op op : ops) {
+                if (op.isLiteral()) {
+                    transfer(in, op.target, op.length, out);
+                } else {
+                    transfer(old, op.oldOffset, op.length, out);
+                }
+                written += op.length;
+            }
+
+            FileUtil.forceToDisk(out);
+            done = true;
+        } finally {
+            FileUtil.closeQuietly(out);
+            FileUtil.closeQuietly(old);
+
+            if (!done) {
+                // only the new copy is half written, the old file is untouched
+                tempFile.delete();
+            }
+        }
+
+        if (!tempFile.setLastModified(lastModified)) {
+            tempFile.delete();
+            throw new IOException("Could not set the modification time of " + tempFile);
+        }
+
+        try {
+            FileUtil.moveAtomically(tempFile, destFile);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        return written;
+    }
+
+    /**
+     * Appends a range of a file to the output file.
+     */
+    private static void transfer(FileChannel from, long position, long length, FileChannel out) throws IOException {
+        long copied = 0;
+
+        while (copied < length) {
+            long transferred = from.transferTo(position + copied, Math.min(length - copied, IoThrottle.CHUNK_SIZE),
+                    out);
+            if (transferred <= 0) {
+                throw new IOException("File shrunk while copying");
+            }
+            copied += transferred;
+            IoThrottle.transfer(transferred);
+        }
+    }
+}
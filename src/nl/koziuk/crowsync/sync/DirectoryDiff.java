@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nl.koziuk.crowsync.persist.FileEntry;
+import nl.koziuk.crowsync.persist.SyncHistory.Record;
+import nl.koziuk.crowsync.persist.TombstoneFile.Tombstone;
+
+/**
+ * Compares the listing of a save directory with the listing of its sync
+ * directory. Both listings are sorted by name and merged, so a diff takes
+ * O(n log n) time instead of comparing every file with every other file.
+ * 
+ * The result describes both directions of a synchronization at once: files
+ * that will be received count as local saves when deciding which are the
+ * newest saves to keep in the sync folder.
+ * 
+ * Files whose entries on both sides have the same content hash are not
+ * copied, even if their modification times differ.
+ * 
+ * A file with a tombstone was removed from the sync folder by some machine.
+ * Versions of it that are not newer than the tombstone are ignored: a local
+ * save is not sent back, and a copy in the sync folder is removed again.
+ * Newer versions are synchronized as usual.
+ * 
+ * A file that exists on both sides is compared with the record of when it
+ * was last synchronized, if there is one: if only the local save changed
+ * since, it is sent, if only the version in the sync folder changed, it is
+ * received, and if both changed it is a conflict. Only files without a record
+ * are compared by modification time, which depends on the clocks of both
+ * machines being right.
+ * 
+ * @author marcin
+ */
+public class DirectoryDiff {
+
+    private static final int SAME = 0;
+    private static final int SAVE_NEWER = 1;
+    private static final int SYNC_NEWER = 2;
+    private static final int CONFLICT = 3;
+
+    private static final Comparator<FileEntry> BY_NAME = new Comparator<FileEntry>() {
+        @Override
+        public int compare(FileEntry e1, FileEntry e2) {
+            return e1.getName().compareTo(e2.getName());
+        }
+    };
+
+    /**
+     * A file name with its entry on either side, and a copy in the sync
+     * folder that is older than its tombstone.
+     */
+    private static class Pair {
+        final FileEntry save;
+        final FileEntry sync;
+        final FileEntry buried;
+
+        Pair(FileEntry save, FileEntry sync) {
+            this(save, sync, null);
+        }
+
+        Pair(FileEntry save, FileEntry sync, FileEntry buried) {
+            this.save = save;
+            this.sync = sync;
+            this.buried = buried;
+        }
+
+        boolean isEmpty() {
+            return save == null && sync == null;
+        }
+
+        /**
+         * Whether both sides are known to have the same content.
+         */
+        boolean sameContent() {
+            return save != null && sync != null && save.hasHash() && sync.hasHash()
+                    && save.getSize() == sync.getSize() && save.getHash() == sync.getHash();
+        }
+
+        /**
+         * The modification time the save file will have after receiving.
+         */
+        long newest() {
+            if (save == null || sameContent()) {
+                return sync.getLastModified();
+            } else if (sync == null) {
+                return save.getLastModified();
+            }
+            return Math.max(save.getLastModified(), sync.getLastModified());
+        }
+    }
+
+    /**
+     * Computes the changes between a save directory and a sync directory.
+     * 
+     * @param saveEntries The files in the save directory.
+     * @param syncEntries The files in the sync directory.
+     * @param maxSaves The number of newest saves to keep in the sync folder.
+     * @return The changes.
+     */
+    public static ChangeSet diff(Collection<FileEntry> saveEntries, Collection<FileEntry> syncEntries, int maxSaves) {
+        return diff(saveEntries, syncEntries, maxSaves, Collections.<String, Tombstone> emptyMap());
+    }
+
+    /**
+     * Computes the changes between a save directory and a sync directory,
+     * leaving out removed saves.
+     * 
+     * @param saveEntries The files in the save directory.
+     * @param syncEntries The files in the sync directory.
+     * @param maxSaves The number of newest saves to keep in the sync folder.
+     * @param tombstones The tombstones of removed saves, by file name.
+     * @return The changes.
+     */
+    public static ChangeSet diff(Collection<FileEntry> saveEntries, Collection<FileEntry> syncEntries, int maxSaves,
+            Map<String, Tombstone> tombstones) {
+        return diff(saveEntries, syncEntries, maxSaves, tombstones, Collections.<String, Record> emptyMap());
+    }
+
+    /**
+     * Computes the changes between a save directory and a sync directory,
+     * leaving out removed saves and detecting files that were changed on both
+     * sides.
+     * 
+     * @param saveEntries The files in the save directory.
+     * @param syncEntries The files in the sync directory.
+     * @param maxSaves The number of newest saves to keep in the sync folder.
+     * @param tombstones The tombstones of removed saves, by file name.
+     * @param history The records of when the files were last synchronized, by
+     *            file name.
+     * @return The changes.
+     */
+    public static ChangeSet diff(Collection<FileEntry> saveEntries, Collection<FileEntry> syncEntries, int maxSaves,
+            Map<String, Tombstone> tombstones, Map<String, Record> history) {
+        List<Pair> pairs = bury(merge(saveEntries, syncEntries), tombstones);
+        Set<Pair> kept = newest(pairs, maxSaves);
+        ChangeSet changes = new ChangeSet();
+
+        for (Pair pair : pairs) {
+            if (pair.buried != null && (pair.save == null || !kept.contains(pair))) {
+                // unless a newer local save replaces it anyway
+                changes.addDeleteFromSync(pair.buried);
+            }
+            if (pair.isEmpty()) {
+                continue;
+            }
+
+            if (pair.sameContent()) {
+                if (kept.contains(pair)) {
+                    changes.addUnchanged(pair.save);
+                    if (pair.save.getLastModified() != pair.sync.getLastModified()) {
+                        changes.addTouched(pair.sync);
+                    }
+                } else {
+                    changes.addDeleteFromSync(pair.sync);
+                }
+                continue;
+            }
+
+            int state = SAME;
+            if (pair.save != null && pair.sync != null) {
+                state = compare(pair, history.get(pair.save.getName()));
+                if (state == CONFLICT && !kept.contains(pair)) {
+                    // about to be removed from the sync folder anyway
+                    state = compareTimes(pair);
+                }
+            }
+
+            if (pair.sync != null && (pair.save == null || state == SYNC_NEWER)) {
+                changes.addCopyToSave(pair.sync);
+            } else if (state == CONFLICT) {
+                changes.addConflict(pair.sync);
+            }
+
+            if (kept.contains(pair)) {
+                if (pair.save != null) {
+                    if (pair.sync == null || state == SAVE_NEWER || state == CONFLICT) {
+                        changes.addCopyToSync(pair.save);
+                    } else if (state == SAME) {
+                        changes.addUnchanged(pair.save);
+                    }
+                }
+            } else if (pair.sync != null) {
+                changes.addDeleteFromSync(pair.sync);
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Decides which side of a pair has changed since the file was last
+     * synchronized. Only the entries are used, so no file is read.
+     */
+    private static int compare(Pair pair, Record record) {
+        if (record == null || record.getVersion() == null || pair.sync.getVersion() == null) {
+            // no common history, so the clocks have to be trusted
+            return compareTimes(pair);
+        }
+
+        boolean saveChanged = record.isChanged(pair.save);
+        boolean syncChanged = !record.getVersion().equals(pair.sync.getVersion());
+
+        if (saveChanged && syncChanged) {
+            return CONFLICT;
+        } else if (saveChanged) {
+            return SAVE_NEWER;
+        } else if (syncChanged) {
+            return SYNC_NEWER;
+        }
+        return SAME;
+    }
+
+    /**
+     * Decides which side of a pair is newer by modification time.
+     */
+    private static int compareTimes(Pair pair) {
+        if (pair.save.getLastModified() > pair.sync.getLastModified()) {
+            return SAVE_NEWER;
+        } else if (pair.sync.getLastModified() > pair.save.getLastModified()) {
+            return SYNC_NEWER;
+        }
+        return SAME;
+    }
+
+    /**
+     * Sorts both listings by name and merges them into pairs.
+     */
+    private static List<Pair> merge(Collection<FileEntry> saveEntries, Collection<FileEntry> syncEntries) {
+        List<FileEntry> saves = new ArrayList<FileEntry>(saveEntries);
+        List<FileEntry> syncs = new ArrayList<FileEntry>(syncEntries);
+        Collections.sort(saves, BY_NAME);
+        Collections.sort(syncs, BY_NAME);
+
+        List<Pair> pairs = new ArrayList<Pair>(saves.size() + syncs.size());
+        int i = 0;
+        int j = 0;
+
+        while (i < saves.size() || j < syncs.size()) {
+            int cmp;
+            if (i == saves.size()) {
+                cmp = 1;
+            } else if (j == syncs.size()) {
+                cmp = -1;
+            } else {
+                cmp = BY_NAME.compare(saves.get(i), syncs.get(j));
+            }
+
+            if (cmp < 0) {
+                pairs.add(new Pair(saves.get(i++), null));
+            } else if (cmp > 0) {
+                pairs.add(new Pair(null, syncs.get(j++)));
+            } else {
+                pairs.add(new Pair(saves.get(i++), syncs.get(j++)));
+            }
+        }
+
+        return pairs;
+    }
+
+    /**
+     * Leaves out the versions of files that are not newer than their
+     * tombstone.
+     */
+    private static List<Pair> bury(List<Pair> pairs, Map<String, Tombstone> tombstones) {
+        if (tombstones.isEmpty()) {
+            return pairs;
+        }
+
+        List<Pair> result = new ArrayList<Pair>(pairs.size());
+
+        for (Pair pair : pairs) {
+            FileEntry any = pair.save != null ? pair.save : pair.sync;
+            Tombstone tombstone = tombstones.get(any.getName());
+
+            if (tombstone == null) {
+                result.add(pair);
+                continue;
+            }
+
+            FileEntry save = pair.save;
+            FileEntry sync = pair.sync;
+            FileEntry buried = null;
+
+            if (save != null && save.getLastModified() <= tombstone.getDeleteTime()) {
+                save = null;
+            }
+            if (sync != null && sync.getLastModified() <= tombstone.getDeleteTime()) {
+                buried = sync;
+                sync = null;
+            }
+
+            result.add(new Pair(save, sync, buried));
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the pairs with the newest files.
+     */
+    private static Set<Pair> newest(List<Pair> pairs, int maxSaves) {
+        List<Pair> byDate = new ArrayList<Pair>(pairs.size());
+        for (Pair pair : pairs) {
+            if (!pair.isEmpty()) {
+                byDate.add(pair);
+            }
+        }
+        Collections.sort(byDate, new Comparator<Pair>() {
+            @Override
+            public int compare(Pair p1, Pair p2) {
+                return Long.valueOf(p2.newest()).compareTo(p1.newest());
+            }
+        });
+
+        Set<Pair> kept = new HashSet<Pair>();
+        for (int i = 0; i < byDate.size() && i < maxSaves; i++) {
+            kept.add(byDate.get(i));
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+
+import nl.koziuk.crowsync.persist.GameInfo;
+import nl.koziuk.crowsync.persist.LeaseFile;
+import nl.koziuk.crowsync.persist.SyncManifest;
+import nl.koziuk.crowsync.persist.TombstoneFile;
+import nl.koziuk.crowsync.storage.StorageBackend;
+import nl.koziuk.crowsync.sync.SynchronizerTask.ChangedTask;
+import nl.koziuk.crowsync.sync.SynchronizerTask.RescanTask;
+import nl.koziuk.crowsync.util.FileUtil;
+import nl.koziuk.crowsync.util.OwnChanges;
+
+/**
+ * Watches the save directory and the sync directory of every game and tells
+ * the synchronizer which games have changed, so that only those need to be
+ * scanned.
+ * 
+ * Games whose directories could not be registered are reported by
+ * getUnwatchedGames() and must be scanned every timestep instead. An
+ * overflowing event queue results in a RescanTask. Changes to temporary
+ * files are ignored, the rename that completes a write is reported. Leases
+ * of other machines are ignored too; the synchronizer retries a game that
+ * waits for a lease on its own. The manifest and tombstones are only
+ * written along with saves, so they are ignored as well, and so are the
+ * files this program has just changed itself. Sync directories can only be watched if the
+ * storage keeps them in a local directory.
+ * 
+ * Sync directories that don't exist yet are not created; the root of the sync
+ * folder is watched instead, and a directory is registered as soon as it
+ * appears there. A sync directory that is removed is waited for again.
+ * 
+ * @author marcin
+ */
+public class DirectoryWatcher implements Runnable {
+    private final BlockingQueue<SynchronizerTask> syncQueue;
+    private final WatchService watchService;
+
+    // key to game name, only accessed by the watcher thread after creation
+    private final Map<WatchKey, String> keys = new HashMap<WatchKey, String>();
+    private final Set<WatchKey> syncDirKeys = new HashSet<WatchKey>();
+    private final Set<String> unwatchedGames = Collections.synchronizedSet(new HashSet<String>());
+
+    // the root of the sync folder, and the names of the games whose sync
+    // directories are waited for there
+    private File syncRoot = null;
+    private WatchKey syncRootKey = null;
+    private final Set<String> missingSyncDirs = new HashSet<String>();
+
+    /**
+     * Creates the watcher and registers the directories of all games.
+     * 
+     * @param syncQueue The queue to put ChangedTasks and RescanTasks on.
+     * @param gameList The games to watch.
+     * @param storage The storage of the sync folder, which contains a
+     *            directory for every game.
+     * @throws IOException If no watch service could be created at all.
+     */
+    public DirectoryWatcher(BlockingQueue<SynchronizerTask> syncQueue, List<GameInfo> gameList, StorageBackend storage)
+            throws IOException {
+        this.syncQueue = syncQueue;
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        syncRoot = storage.toLocalFile("");
+        if (syncRoot != null) {
+            syncRootKey = registerRoot(syncRoot);
+        }
+
+        for (GameInfo game : gameList) {
+            File syncDir = storage.toLocalFile(game.getName());
+
+            // registered after the root, so a directory that appears in
+            // between is still seen
+            boolean watched = register(new File(game.getSavePath()), game.getName(), false);
+            if (syncDir != null && !syncDir.exists() && syncRootKey != null) {
+                missingSyncDirs.add(game.getName());
+            } else if (!register(syncDir, game.getName(), true)) {
+                watched = false;
+            }
+
+            if (!watched) {
+                unwatchedGames.add(game.getName());
+            }
+        }
+    }
+
+    /**
+     * Registers the root of the sync folder, to see sync directories appear.
+     * 
+     * @return The key, or null if registering failed.
+     */
+    private WatchKey registerRoot(File root) {
+        if (!root.isDirectory()) {
+            return null;
+        }
+
+        try {
+            return root.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Registers the sync directories that have appeared in the root of the
+     * sync folder.
+     * 
+     * @param changedGames The set to add the names of their games to.
+     */
+    private void registerAppeared(WatchKey key, Set<String> changedGames) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            String gameName = String.valueOf(event.context());
+
+            if (missingSyncDirs.contains(gameName) && registerSyncDir(gameName)) {
+                changedGames.add(gameName);
+            }
+        }
+
+        if (!key.reset()) {
+            syncRootKey = null;
+            unwatchedGames.addAll(missingSyncDirs);
+            missingSyncDirs.clear();
+        }
+    }
+
+    /**
+     * Registers a sync directory that was waited for, if it exists now.
+     * 
+     * @return Whether it exists, in which case the game must be scanned,
+     *         since files may have been written into it before it was
+     *         registered.
+     */
+    private boolean registerSyncDir(String gameName) {
+        File syncDir = new File(syncRoot, gameName);
+        if (!syncDir.isDirectory()) {
+            return false;
+        }
+
+        missingSyncDirs.remove(gameName);
+        if (!register(syncDir, gameName, true)) {
+            unwatchedGames.add(gameName);
+        }
+        return true;
+    }
+
+    /**
+     * Registers a single directory.
+     * 
+     * @return Whether registering succeeded.
+     */
+    private boolean register(File dir, String gameName, boolean isSyncDir) {
+        if (dir == null || !dir.isDirectory()) {
+            return false;
+        }
+
+        try {
+            Path path = dir.toPath();
+            WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            keys.put(key, gameName);
+            if (isSyncDir) {
+                syncDirKeys.add(key);
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether changes to a file don't need a scan.
+     */
+    private static boolean isIgnored(Path dir, Path name) {
+        String fileName = name.toString();
+
+        return FileUtil.isTempFile(fileName) || LeaseFile.isLeaseFile(fileName) || SyncManifest.isManifest(fileName)
+                || TombstoneFile.isTombstoneFile(fileName) || OwnChanges.isOwnChange(dir.resolve(name).toFile());
+    }
+
+    /**
+     * Returns the names of the games for which not every directory could be
+     * watched.
+     * 
+     * @return A copy of the set of unwatched game names.
+     */
+    public Set<String> getUnwatchedGames() {
+        synchronized (unwatchedGames) {
+            return new HashSet<String>(unwatchedGames);
+        }
+    }
+
+    /**
+     * Stops watching. The watcher thread will end shortly after.
+     */
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // om nom nom!
+        }
+    }
+
+    /**
+     * Waits for events and turns them into tasks for the synchronizer. Keys
+     * that are signalled at the same time are coalesced into a single task.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Set<String> changedGames = new HashSet<String>();
+                Set<String> changedSyncDirs = new HashSet<String>();
+                boolean overflow = false;
+
+                WatchKey key = watchService.take();
+                while (key != null) {
+                    if (key == syncRootKey) {
+                        registerAppeared(key, changedSyncDirs);
+                        key = watchService.poll();
+                        continue;
+                    }
+
+                    String gameName = keys.get(key);
+                    boolean changed = false;
+
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else if (!isIgnored((Path) key.watchable(), (Path) event.context())) {
+                            changed = true;
+                        }
+                    }
+
+                    if (gameName != null) {
+                        if (changed) {
+                            changedGames.add(gameName);
+                            if (syncDirKeys.contains(key)) {
+                                changedSyncDirs.add(gameName);
+                            }
+                        }
+
+                        if (!key.reset()) {
+                            keys.remove(key);
+                            if (syncDirKeys.remove(key) && syncRootKey != null) {
+                                // wait for it to be made again, unless that
+                                // already happened
+                                missingSyncDirs.add(gameName);
+                                registerSyncDir(gameName);
+                                changedSyncDirs.add(gameName);
+                            } else {
+                                // directory is gone, fall back to scanning it
+                                unwatchedGames.add(gameName);
+                            }
+                        }
+                    }
+
+                    key = watchService.poll();
+                }
+
+                changedGames.addAll(changedSyncDirs);
+                if (overflow) {
+                    syncQueue.put(new RescanTask());
+                } else if (!changedGames.isEmpty()) {
+                    syncQueue.put(new ChangedTask(changedGames, changedSyncDirs));
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // closed by the synchronizer
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
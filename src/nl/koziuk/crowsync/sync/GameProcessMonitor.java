@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+
+import nl.koziuk.crowsync.persist.GameInfo;
+import nl.koziuk.crowsync.sync.SynchronizerTask.GameExitedTask;
+import nl.koziuk.crowsync.sync.SynchronizerTask.GameLaunchedTask;
+import nl.koziuk.crowsync.util.ProcessTable;
+
+/**
+ * Watches the executables of all games and tells the synchronizer as soon as
+ * a game has exited, so its saves are sent right away instead of during the
+ * next full scan. It is also told when a game has been started, so the game's
+ * saves are scanned often while it is played.
+ * 
+ * There is no way to wait for the exit of another process in Java 7, so the
+ * process table is listed twice a second while a game is running, and only
+ * every few seconds while none is. The snapshots are shared with the
+ * synchronizer, so a recent one is not listed again, and each listing covers
+ * all games together.
+ * 
+ * @author marcin
+ */
+public class GameProcessMonitor implements Runnable {
+    private static final long POLL_INTERVAL = 500;
+    private static final long IDLE_POLL_INTERVAL = 5000;
+
+    private final BlockingQueue<SynchronizerTask> syncQueue;
+    private final List<GameInfo> gameList;
+    private final ProcessTable processTable;
+
+    // names of the games that were running during the last poll
+    private final Set<String> runningGames = new HashSet<String>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a monitor for a list of games.
+     * 
+     * @param syncQueue The queue to put GameLaunchedTasks and GameExitedTasks
+     *            on.
+     * @param gameList The games to monitor.
+     * @param processTable The process table shared with the synchronizer.
+     */
+    public GameProcessMonitor(BlockingQueue<SynchronizerTask> syncQueue, List<GameInfo> gameList,
+            ProcessTable processTable) {
+        this.syncQueue = syncQueue;
+        this.gameList = gameList;
+        this.processTable = processTable;
+    }
+
+    /**
+     * Stops monitoring. The monitor thread will end shortly after.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Lists the running processes until closed and puts a task on the queue
+     * for every game that has started or exited since the previous poll.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                long interval = runningGames.isEmpty() ? IDLE_POLL_INTERVAL : POLL_INTERVAL;
+                Set<String> executables = processTable.getSnapshot(interval);
+
+                for (GameInfo game : gameList) {
+                    String executable = ProcessTable.executableName(game.getExecutablePath());
+
+                    if (executables.contains(executable)) {
+                        if (runningGames.add(game.getName()) && !closed) {
+                            syncQueue.put(new GameLaunchedTask(game.getName()));
+                        }
+                    } else if (runningGames.remove(game.getName()) && !closed) {
+                        syncQueue.put(new GameExitedTask(game.getName()));
+                    }
+                }
+
+                Thread.sleep(runningGames.isEmpty() ? IDLE_POLL_INTERVAL : POLL_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
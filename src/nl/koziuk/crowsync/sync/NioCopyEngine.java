@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import nl.koziuk.crowsync.util.FileUtil;
+import nl.koziuk.crowsync.util.IoThrottle;
+
+/**
+ * Copies files inside the JVM with FileChannel.transferTo, so that the
+ * operating system can copy the data without it passing through the Java
+ * heap. The copy is written to a temporary file next to the destination,
+ * forced to disk and then renamed, so that a half-copied file is never
+ * visible under its real name. The data is copied in chunks, so that the
+ * IoThrottle can slow it down.
+ * 
+ * @author marcin
+ */
+public class NioCopyEngine implements CopyEngine {
+
+    @Override
+    public long copyFileToDir(File sourceFile, File destDir) throws IOException {
+        if (!sourceFile.isFile() || !destDir.isDirectory()) {
+            throw new IllegalArgumentException("Cannot copy " + sourceFile + " to " + destDir);
+        }
+
+        File destFile = new File(destDir, sourceFile.getName());
+        File tempFile = FileUtil.tempFileFor(destFile);
+        long lastModified = sourceFile.lastModified();
+        long copied = 0;
+
+        FileChannel in = null;
+        FileChannel out = null;
+        boolean done = false;
+
+        IoThrottle.operation();
+
+        try {
+            in = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ);
+            out = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+
+            long size = in.size();
+            while (copied < size) {
+                long transferred = in.transferTo(copied, Math.min(size - copied, IoThrottle.CHUNK_SIZE), out);
+                if (transferred <= 0) {
+                    throw new IOException("File shrunk while copying");
+                }
+                copied += transferred;
+                IoThrottle.transfer(transferred);
+            }
+            FileUtil.forceToDisk(out);
+            done = true;
+        } finally {
+            FileUtil.closeQuietly(in);
+            FileUtil.closeQuietly(out);
+
+            if (!done) {
+                tempFile.delete();
+            }
+        }
+
+        if (!tempFile.setLastModified(lastModified)) {
+            tempFile.delete();
+            throw new IOException("Could not set the modification time of " + tempFile);
+        }
+
+        try {
+            FileUtil.moveAtomically(tempFile, destFile);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        return copied;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+import nl.koziuk.crowsync.persist.ChunkRecipe;
+import nl.koziuk.crowsync.persist.CompressedFile;
+import nl.koziuk.crowsync.persist.FileEntry;
+import nl.koziuk.crowsync.storage.StorageBackend;
+import nl.koziuk.crowsync.util.HashUtil;
+
+/**
+ * The original layout, which keeps a full copy of every save under its own
+ * name. Saves may be stored as a CompressedFile, in which case the file keeps
+ * the modification time of the save. Compressed files are always recognized
+ * when receiving, whether compression is enabled or not. Uncompressed saves
+ * are copied by the CopyEngine if the sync folder is a local directory.
+ * 
+ * @author marcin
+ */
+public class PlainLayout implements SyncLayout {
+    private final StorageBackend backend;
+    private final CopyEngine copyEngine;
+    private final int compressionLevel;
+
+    /**
+     * Creates a plain layout that doesn't compress saves.
+     * 
+     * @param backend The storage of the sync folder.
+     * @param copyEngine The engine to copy save files with.
+     */
+    public PlainLayout(StorageBackend backend, CopyEngine copyEngine) {
+        this(backend, copyEngine, 0);
+    }
+
+    /**
+     * Creates a plain layout.
+     * 
+     * @param backend The storage of the sync folder.
+     * @param copyEngine The engine to copy uncompressed save files with.
+     * @param compressionLevel The deflate level from 1 to 9, or 0 to store
+     *            saves uncompressed.
+     */
+    public PlainLayout(StorageBackend backend, CopyEngine copyEngine, int compressionLevel) {
+        this.backend = backend;
+        this.copyEngine = copyEngine;
+        this.compressionLevel = Math.min(compressionLevel, 9);
+    }
+
+    @Override
+    public String fileNameOf(String saveName) {
+        return saveName;
+    }
+
+    @Override
+    public String saveNameOf(String fileName) {
+        return ChunkRecipe.isRecipe(fileName) ? null : fileName;
+    }
+
+    @Override
+    public FileEntry describe(String storedPath, FileEntry stored, String saveName, FileEntry known)
+            throws IOException {
+        long size = CompressedFile.isCompressed(backend, storedPath) ? CompressedFile.readSize(backend, storedPath)
+                : stored.getSize();
+        FileEntry actual = new FileEntry(saveName, size, stored.getLastModified(), FileEntry.NO_HASH);
+
+        if (known != null && known.sameAttributes(actual)) {
+            return known;
+        }
+        return new FileEntry(saveName, size, actual.getLastModified(), CompressedFile.hashContent(backend, storedPath));
+    }
+
+    @Override
+    public boolean isAvailable(String storedPath) {
+        try {
+            return backend.stat(storedPath) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public FileEntry store(File saveFile, String storedPath) throws IOException {
+        File storedFile = backend.toLocalFile(storedPath);
+
+        if (compressionLevel > 0 && CompressedFile.isCompressible(saveFile)) {
+            CompressedFile.compress(saveFile, backend, storedPath, compressionLevel);
+        } else if (storedFile != null) {
+            copyEngine.copyFileToDir(saveFile, storedFile.getParentFile());
+        } else {
+            CompressedFile.store(saveFile, backend, storedPath);
+        }
+        return new FileEntry(saveFile.getName(), saveFile.length(), saveFile.lastModified(),
+                HashUtil.hashFile(saveFile));
+    }
+
+    @Override
+    public long restore(String storedPath, File saveFile) throws IOException {
+        File storedFile = backend.toLocalFile(storedPath);
+
+        if (storedFile == null || CompressedFile.isCompressed(backend, storedPath)) {
+            return CompressedFile.restore(backend, storedPath, saveFile);
+        }
+
+        copyEngine.copyFileToDir(storedFile, saveFile.getParentFile());
+        return FileEntry.NO_HASH;
+    }
+
+    @Override
+    public long hashStored(String storedPath) throws IOException {
+        return CompressedFile.hashContent(backend, storedPath);
+    }
+
+    @Override
+    public void delete(Collection<String> storedPaths) throws IOException {
+        backend.deleteAll(storedPaths);
+    }
+
+    @Override
+    public void collectGarbage() {
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import nl.koziuk.crowsync.CrowSyncException;
+import nl.koziuk.crowsync.persist.FileEntry;
+import nl.koziuk.crowsync.persist.HashCache;
+import nl.koziuk.crowsync.util.HashUtil;
+
+/**
+ * Hashes local save files through a HashCache. Files that are not cached are
+ * hashed in parallel on a pool of its own, so the synchronizer's workers can
+ * use it without waiting for each other.
+ * 
+ * A file that changes while it is being hashed, or that can't be read, is
+ * left without a hash, so it is treated as changed.
+ * 
+ * The same threads are used to verify copies. Checks can be started one at a
+ * time while files are still being copied, so that reading back one copy
+ * overlaps writing the next.
+ * 
+ * @author marcin
+ */
+public class SaveHasher {
+    /**
+     * Checks whether an item has the expected content.
+     */
+    public interface ContentCheck<T> {
+
+        /**
+         * Checks an item. This is called on a hashing thread.
+         * 
+         * @param item The item.
+         * @return True if its content is as expected.
+         * @throws IOException If it can't be read, which counts as a
+         *             mismatch.
+         */
+        public boolean matches(T item) throws IOException;
+    }
+
+    /**
+     * Checks that run while more items are added.
+     */
+    public class Checks<T> {
+        private final ContentCheck<T> check;
+        private final List<T> items = new ArrayList<T>();
+        private final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+
+        private Checks(ContentCheck<T> check) {
+            this.check = check;
+        }
+
+        /**
+         * Starts checking an item.
+         * 
+         * @param item The item, which must be ready to be checked.
+         */
+        public void add(final T item) {
+            items.add(item);
+            futures.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return check.matches(item);
+                }
+            }));
+        }
+
+        /**
+         * Waits for all checks to finish.
+         * 
+         * @return The items that don't match, in the order they were added.
+         */
+        public List<T> getMismatches() {
+            List<T> mismatches = new ArrayList<T>();
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    if (!futures.get(i).get()) {
+                        mismatches.add(items.get(i));
+                    }
+                } catch (ExecutionException e) {
+                    mismatches.add(items.get(i));
+                } catch (InterruptedException e) {
+                    throw new CrowSyncException("Interrupted while verifying copies", e);
+                }
+            }
+
+            return mismatches;
+        }
+    }
+
+    private final HashCache cache;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a hasher with a thread for every processor, up to four.
+     * 
+     * @param cache The cache to look up and remember hashes in.
+     */
+    public SaveHasher(HashCache cache) {
+        this.cache = cache;
+
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CrowSync hasher " + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Adds content hashes to the entries of save files.
+     * 
+     * @param saveDir The save directory.
+     * @param entries The entries of files in that directory.
+     * @return The entries in the same order, with a hash where it is known.
+     */
+    public List<FileEntry> hash(File saveDir, List<FileEntry> entries) {
+        List<FileEntry> result = new ArrayList<FileEntry>(entries.size());
+        List<Future<FileEntry>> futures = new ArrayList<Future<FileEntry>>(entries.size());
+
+        for (final FileEntry entry : entries) {
+            final File file = new File(saveDir, entry.getName());
+            long hash = cache.get(file, entry.getSize(), entry.getLastModified());
+
+            if (hash != FileEntry.NO_HASH) {
+                result.add(withHash(entry, hash));
+                futures.add(null);
+            } else {
+                result.add(entry);
+                futures.add(executor.submit(new Callable<FileEntry>() {
+                    @Override
+                    public FileEntry call() throws IOException {
+                        return hashFile(file, entry);
+                    }
+                }));
+            }
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            Future<FileEntry> future = futures.get(i);
+            if (future == null) {
+                continue;
+            }
+
+            try {
+                result.set(i, future.get());
+            } catch (ExecutionException e) {
+                // leave it without a hash
+            } catch (InterruptedException e) {
+                throw new CrowSyncException("Interrupted while hashing " + saveDir.getAbsolutePath(), e);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks items in parallel.
+     * 
+     * @param items The items to check.
+     * @param check The check.
+     * @return The items that don't match, in the same order.
+     */
+    public <T> List<T> findMismatches(List<T> items, ContentCheck<T> check) {
+        Checks<T> checks = startChecks(check);
+
+        for (T item : items) {
+            checks.add(item);
+        }
+        return checks.getMismatches();
+    }
+
+    /**
+     * Prepares to check items in parallel as they become ready.
+     * 
+     * @param check The check.
+     * @return The checks, to add items to.
+     */
+    public <T> Checks<T> startChecks(ContentCheck<T> check) {
+        return new Checks<T>(check);
+    }
+
+    /**
+     * Stops the hashing threads.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    private FileEntry hashFile(File file, FileEntry entry) throws IOException {
+        long hash = HashUtil.hashFile(file);
+
+        if (file.length() != entry.getSize() || file.lastModified() != entry.getLastModified()) {
+            // changed while hashing
+            return entry;
+        }
+
+        cache.put(file, entry.getSize(), entry.getLastModified(), hash);
+        return withHash(entry, hash);
+    }
+
+    private static FileEntry withHash(FileEntry entry, long hash) {
+        return new FileEntry(entry.getName(), entry.getSize(), entry.getLastModified(), hash);
+    }
+}
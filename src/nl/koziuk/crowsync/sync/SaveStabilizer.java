@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nl.koziuk.crowsync.persist.FileEntry;
+
+/**
+ * Holds back save files that are still being written. Many games write a save
+ * in several passes, so a file is only sent once its size and modification
+ * time have not changed for the quiet period. A burst of writes then results
+ * in a single copy.
+ * 
+ * A file counts as stable if it was last modified at least the quiet period
+ * ago, or if it has looked the same for the quiet period (for modification
+ * times in the future or with a coarse resolution).
+ * 
+ * @author marcin
+ */
+public class SaveStabilizer {
+
+    /**
+     * The attributes of a save file and when they were first seen.
+     */
+    private static class Observation {
+        final long size;
+        final long lastModified;
+        final long since;
+
+        Observation(FileEntry entry, long since) {
+            this.size = entry.getSize();
+            this.lastModified = entry.getLastModified();
+            this.since = since;
+        }
+    }
+
+    private volatile long quietPeriod;
+
+    // unstable files by game name and file name, every game is only
+    // stabilized by one worker at a time
+    private final Map<String, Map<String, Observation>> observations = new ConcurrentHashMap<String, Map<String, Observation>>();
+
+    /**
+     * Creates a stabilizer.
+     * 
+     * @param quietPeriod The number of milliseconds a file must be left alone
+     *            before it is sent, or 0 to send files right away.
+     */
+    public SaveStabilizer(long quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    /**
+     * Sets the quiet period.
+     * 
+     * @param quietPeriod The number of milliseconds a file must be left alone
+     *            before it is sent, or 0 to send files right away.
+     */
+    public void setQuietPeriod(long quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    /**
+     * Forgets all observed files.
+     */
+    public void clear() {
+        observations.clear();
+    }
+
+    /**
+     * Defers the files of a change set that are not stable yet.
+     * 
+     * @param gameName The name of the game.
+     * @param changes The changes of the game, which will be modified.
+     * @param now The current time in milliseconds.
+     * @return The time at which the game should be scanned again, or 0 if
+     *         nothing was deferred.
+     */
+    public long stabilize(String gameName, ChangeSet changes, long now) {
+        long quiet = quietPeriod;
+        Map<String, Observation> previous = observations.remove(gameName);
+
+        if (quiet <= 0) {
+            return 0;
+        }
+
+        Map<String, Observation> current = new HashMap<String, Observation>();
+        Set<String> unstable = new HashSet<String>();
+        long due = 0;
+
+        for (FileEntry entry : changes.getCopyToSync()) {
+            if (now - entry.getLastModified() >= quiet) {
+                continue;
+            }
+
+            Observation observation = previous == null ? null : previous.get(entry.getName());
+            if (observation == null || observation.size != entry.getSize()
+                    || observation.lastModified != entry.getLastModified()) {
+                observation = new Observation(entry, now);
+            }
+
+            if (now - observation.since >= quiet) {
+                continue;
+            }
+
+            current.put(entry.getName(), observation);
+            unstable.add(entry.getName());
+
+            long fileDue = Math.min(entry.getLastModified(), observation.since) + quiet;
+            if (due == 0 || fileDue < due) {
+                due = fileDue;
+            }
+        }
+
+        if (!current.isEmpty()) {
+            observations.put(gameName, current);
+            changes.defer(unstable);
+        }
+
+        return due;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides how often a game is scanned without being told that it changed,
+ * from how long ago its saves last changed. A game that changed recently is
+ * hot and scanned at the shortest interval. After that, the interval doubles
+ * every time the game's age doubles, up to MAX_INTERVAL, so games that
+ * haven't been played for a long time are hardly scanned at all.
+ * 
+ * A change is noted when a scan finds newer saves or work to do, and when a
+ * watched directory changes, the game is started or the user asks to
+ * synchronize now.
+ * 
+ * @author marcin
+ */
+public class ScanScheduler {
+
+    /**
+     * How long a game stays hot after it changed.
+     */
+    public static final long HOT_PERIOD = 10 * 60 * 1000;
+
+    /**
+     * The longest time between two scans of a game.
+     */
+    public static final long MAX_INTERVAL = 60 * 60 * 1000;
+
+    // by game name
+    private final Map<String, Long> lastChanges = new HashMap<String, Long>();
+    private final Map<String, Long> lastScans = new HashMap<String, Long>();
+
+    /**
+     * Notes that a game has changed. Earlier changes than the last one that
+     * is known are ignored.
+     * 
+     * @param gameName The name of the game.
+     * @param time The time of the change.
+     */
+    public synchronized void changed(String gameName, long time) {
+        Long lastChange = lastChanges.get(gameName);
+
+        if (lastChange == null || time > lastChange) {
+            lastChanges.put(gameName, time);
+        }
+    }
+
+    /**
+     * Notes that a game has been scanned.
+     * 
+     * @param gameName The name of the game.
+     * @param now The current time.
+     */
+    public synchronized void scanned(String gameName, long now) {
+        lastScans.put(gameName, now);
+    }
+
+    /**
+     * Returns how long to wait between scans of a game.
+     * 
+     * @param gameName The name of the game.
+     * @param minInterval The interval for a hot game.
+     * @param now The current time.
+     * @return The interval in milliseconds.
+     */
+    public synchronized long getInterval(String gameName, long minInterval, long now) {
+        Long lastChange = lastChanges.get(gameName);
+
+        if (lastChange == null) {
+            // nothing is known yet
+            return minInterval;
+        }
+
+        long age = now - lastChange;
+        long interval = minInterval;
+        for (long limit = HOT_PERIOD; age >= limit && interval < MAX_INTERVAL; limit *= 2) {
+            interval *= 2;
+        }
+        return Math.max(minInterval, Math.min(interval, MAX_INTERVAL));
+    }
+
+    /**
+     * Returns whether a game should be scanned again.
+     * 
+     * @param gameName The name of the game.
+     * @param minInterval The interval for a hot game.
+     * @param now The current time.
+     * @return True if the game was never scanned or its interval has passed.
+     */
+    public synchronized boolean isDue(String gameName, long minInterval, long now) {
+        Long lastScan = lastScans.get(gameName);
+        return lastScan == null || now - lastScan >= getInterval(gameName, minInterval, now);
+    }
+}
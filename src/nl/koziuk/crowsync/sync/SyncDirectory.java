@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nl.koziuk.crowsync.persist.FileEntry;
+import nl.koziuk.crowsync.persist.LeaseFile;
+import nl.koziuk.crowsync.persist.SyncManifest;
+import nl.koziuk.crowsync.persist.TombstoneFile;
+import nl.koziuk.crowsync.persist.TombstoneFile.Tombstone;
+import nl.koziuk.crowsync.persist.Version;
+import nl.koziuk.crowsync.storage.StorageBackend;
+import nl.koziuk.crowsync.storage.StoragePath;
+import nl.koziuk.crowsync.util.FileUtil;
+
+/**
+ * A game's directory in the sync folder. The files in it are known through
+ * its manifest, which is only read again when it has been changed. The
+ * directory itself is only listed when it has no manifest yet or when it is
+ * explicitly verified.
+ * 
+ * How the saves are stored in the directory is decided by a SyncLayout; the
+ * manifest always describes the save files themselves. Saves that are
+ * removed leave a tombstone, so other machines don't send them back. A
+ * machine must hold the directory's lease before it writes saves to it.
+ * 
+ * A SyncDirectory must only be used by one thread at a time.
+ * 
+ * @author marcin
+ */
+public class SyncDirectory {
+    private final StorageBackend backend;
+    private final String dir;
+    private final SyncManifest manifest;
+    private final TombstoneFile tombstones;
+    private final LeaseFile lease;
+    private final SyncLayout layout;
+    private final String machineId;
+
+    private boolean loaded = false;
+    private boolean dirty = false;
+    private boolean tombstonesDirty = false;
+
+    /**
+     * Creates a sync directory. Nothing is read yet.
+     * 
+     * @param backend The storage of the sync folder.
+     * @param dir The game's directory in the sync folder.
+     * @param layout The way saves are stored.
+     * @param machineId The ID of this machine, for the tombstones and the
+     *            lease.
+     */
+    public SyncDirectory(StorageBackend backend, String dir, SyncLayout layout, String machineId) {
+        this.backend = backend;
+        this.dir = dir;
+        this.manifest = new SyncManifest(backend, dir);
+        this.tombstones = new TombstoneFile(backend, dir);
+        this.lease = new LeaseFile(backend, dir, machineId);
+        this.layout = layout;
+        this.machineId = machineId;
+    }
+
+    /**
+     * Returns a description of the directory for messages.
+     * 
+     * @return The display path of the directory.
+     */
+    public String getDisplayPath() {
+        return backend.toDisplayPath(dir);
+    }
+
+    /**
+     * Returns a description of the file that stores a save, for messages.
+     * 
+     * @param name The name of the save file.
+     * @return The display path of the file.
+     */
+    public String getDisplayPath(String name) {
+        return backend.toDisplayPath(getPath(name));
+    }
+
+    /**
+     * Returns the file that stores a save.
+     * 
+     * @param name The name of the save file.
+     * @return The path of the file in the directory.
+     */
+    public String getPath(String name) {
+        return StoragePath.join(dir, layout.fileNameOf(name));
+    }
+
+    /**
+     * Makes the directory if it doesn't exist yet.
+     * 
+     * @throws IOException
+     */
+    public void makeDirectory() throws IOException {
+        backend.makeDirectory(dir);
+    }
+
+    /**
+     * Returns whether a save can be received, which it can't while the cloud
+     * client is still downloading it.
+     * 
+     * @param name The name of the save file.
+     * @return True if the save is available.
+     */
+    public boolean isAvailable(String name) {
+        return layout.isAvailable(getPath(name));
+    }
+
+    /**
+     * Tries to acquire the lease on the directory.
+     * 
+     * @return LeaseFile.HELD if saves may be written, LeaseFile.PENDING if
+     *         this has to be tried again after the settle time, or
+     *         LeaseFile.TAKEN if another machine holds the lease.
+     * @throws IOException
+     */
+    public int acquireLease() throws IOException {
+        return lease.acquire(System.currentTimeMillis());
+    }
+
+    /**
+     * Keeps a held lease from expiring while saves are being written.
+     * 
+     * @throws IOException
+     */
+    public void renewLease() throws IOException {
+        lease.renew(System.currentTimeMillis());
+    }
+
+    /**
+     * Gives up the lease, if this machine holds it or is waiting for it.
+     */
+    public void releaseLease() {
+        lease.release();
+    }
+
+    /**
+     * Writes a save to the directory and records it.
+     * 
+     * @param saveFile The save file.
+     * @param version The version of the stored save.
+     * @return The entry of the stored save, with its content hash and
+     *         version.
+     * @throws IOException
+     */
+    public FileEntry send(File saveFile, Version version) throws IOException {
+        FileEntry entry = layout.store(saveFile, getPath(saveFile.getName())).withVersion(version);
+        added(entry);
+        if (tombstones.remove(entry.getName())) {
+            tombstonesDirty = true;
+        }
+        return entry;
+    }
+
+    /**
+     * Writes a save from the directory to a save directory.
+     * 
+     * @param name The name of the save file.
+     * @param saveDir The save directory.
+     * @return The content hash of the written save, or FileEntry.NO_HASH if
+     *         it wasn't computed while writing.
+     * @throws IOException
+     */
+    public long receive(String name, File saveDir) throws IOException {
+        return layout.restore(getPath(name), new File(saveDir, name));
+    }
+
+    /**
+     * Reads a stored save back and hashes it. Unlike the other methods, this
+     * may be called while another thread uses the directory.
+     * 
+     * @param name The name of the save file.
+     * @return The content hash of the stored save.
+     * @throws IOException
+     */
+    public long hashStored(String name) throws IOException {
+        return layout.hashStored(getPath(name));
+    }
+
+    /**
+     * Removes saves from the directory, all at once, and records it, leaving
+     * tombstones.
+     * 
+     * @param names The names of the save files.
+     * @throws IOException
+     */
+    public void delete(Collection<String> names) throws IOException {
+        List<String> paths = new ArrayList<String>(names.size());
+        long now = System.currentTimeMillis();
+
+        for (String name : names) {
+            paths.add(getPath(name));
+        }
+        layout.delete(paths);
+
+        for (String name : names) {
+            removed(name);
+            tombstones.put(new Tombstone(name, now, machineId));
+            tombstonesDirty = true;
+        }
+    }
+
+    /**
+     * Removes a save that was not stored correctly from the directory,
+     * without leaving a tombstone, so that it can be sent again.
+     * 
+     * @param name The name of the save file.
+     * @throws IOException
+     */
+    public void discard(String name) throws IOException {
+        layout.delete(Collections.singleton(getPath(name)));
+        removed(name);
+    }
+
+    /**
+     * Returns whether the manifest has been read.
+     * 
+     * @return True if refresh() has been called.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Makes sure the entries are up to date. The manifest and the tombstones
+     * are read if they have changed since they were last read or written.
+     * 
+     * @param verify Whether to also compare the manifest with the actual
+     *            files, for when the directory is known to have changed.
+     * @param cleanUp Whether temporary files left behind by a crash may be
+     *            removed while verifying.
+     * @throws IOException
+     */
+    public void refresh(boolean verify, boolean cleanUp) throws IOException {
+        if (!loaded || manifest.isStale()) {
+            if (!manifest.load()) {
+                // no manifest yet, so build one from the files
+                verify = true;
+            }
+            loaded = true;
+        }
+
+        // unsaved tombstones are merged with the file when it is written
+        if (!tombstonesDirty && tombstones.isStale()) {
+            tombstones.load();
+        }
+
+        if (verify) {
+            verify(cleanUp);
+        }
+    }
+
+    /**
+     * Compares the manifest with the files in the directory, which are
+     * listed with their size and modification time at once. Files of which
+     * the size or modification time differ are described again by the
+     * layout. The corrected
+     * entries are only written if there was no manifest yet; otherwise they
+     * are written with the next change, because a file may only be missing
+     * because the cloud client hasn't downloaded it yet. Temporary files
+     * left behind by a crash are removed if asked to.
+     * 
+     * @param cleanUp Whether to remove stale temporary files.
+     * @throws IOException
+     */
+    private void verify(boolean cleanUp) throws IOException {
+        List<FileEntry> files = backend.list(dir);
+        if (files == null) {
+            return;
+        }
+
+        Set<String> found = new HashSet<String>();
+        List<String> staleTempFiles = new ArrayList<String>();
+        boolean hasManifest = false;
+
+        for (FileEntry file : files) {
+            String fileName = file.getName();
+
+            if (FileUtil.isTempFile(fileName)) {
+                if (cleanUp && FileUtil.isStaleTempFile(file.getLastModified())) {
+                    staleTempFiles.add(StoragePath.join(dir, fileName));
+                }
+                continue;
+            }
+            if (SyncManifest.isManifest(fileName)) {
+                hasManifest = true;
+                continue;
+            }
+            if (TombstoneFile.isTombstoneFile(fileName) || LeaseFile.isLeaseFile(fileName)) {
+                continue;
+            }
+
+            String name = layout.saveNameOf(fileName);
+            if (name == null) {
+                continue;
+            }
+
+            FileEntry entry = layout.describe(StoragePath.join(dir, fileName), file, name, manifest.get(name));
+            if (entry != null) {
+                found.add(name);
+                manifest.put(entry);
+            }
+        }
+
+        if (!hasManifest) {
+            dirty = true;
+        }
+        backend.deleteAll(staleTempFiles);
+
+        for (String name : new ArrayList<String>(manifest.getEntries().keySet())) {
+            if (!found.contains(name)) {
+                manifest.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Returns the entries, by file name.
+     * 
+     * @return An unmodifiable view of the entries.
+     */
+    public Map<String, FileEntry> getEntries() {
+        return manifest.getEntries();
+    }
+
+    /**
+     * Returns the tombstones of the saves that were removed, by file name.
+     * 
+     * @return An unmodifiable view of the tombstones.
+     */
+    public Map<String, Tombstone> getTombstones() {
+        return tombstones.getTombstones();
+    }
+
+    /**
+     * Records that a file has been written to the directory.
+     * 
+     * @param entry The file's entry.
+     */
+    public void added(FileEntry entry) {
+        manifest.put(entry);
+        dirty = true;
+    }
+
+    /**
+     * Records that a file has been removed from the directory.
+     * 
+     * @param name The file name.
+     */
+    public void removed(String name) {
+        if (manifest.remove(name)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes the manifest and the tombstones if anything has changed.
+     * 
+     * @return True if anything was written.
+     * @throws IOException
+     */
+    public boolean commit() throws IOException {
+        boolean written = false;
+
+        if (dirty && backend.isDirectory(dir)) {
+            manifest.save();
+            dirty = false;
+            written = true;
+        }
+        if (tombstonesDirty && backend.isDirectory(dir)) {
+            tombstones.save();
+            tombstonesDirty = false;
+            written = true;
+        }
+        return written;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+import nl.koziuk.crowsync.persist.FileEntry;
+
+/**
+ * Decides how save files are stored in a game's directory in the sync
+ * folder. Every save is stored in a single file in that directory, but that
+ * file may be the save itself or only describe it. All machines sharing a
+ * sync folder must use the same layout; files of other layouts are ignored.
+ * Stored files are addressed by their path in the StorageBackend of the sync
+ * folder. Implementations must be safe to use from multiple threads.
+ * 
+ * @author marcin
+ */
+public interface SyncLayout {
+
+    /**
+     * Returns the name of the file that stores a save.
+     * 
+     * @param saveName The name of the save file.
+     * @return The name of the file in the game's directory.
+     */
+    public String fileNameOf(String saveName);
+
+    /**
+     * Returns the name of the save stored in a file.
+     * 
+     * @param fileName The name of a file in the game's directory.
+     * @return The name of the save file, or null if the file doesn't store a
+     *         save in this layout.
+     */
+    public String saveNameOf(String fileName);
+
+    /**
+     * Returns the entry of a stored save.
+     * 
+     * @param storedPath The file that stores the save.
+     * @param stored The size and modification time of that file.
+     * @param saveName The name of the save file.
+     * @param known The entry in the manifest, which may be returned if it is
+     *            still correct, or null.
+     * @return The entry, or null if the stored save can't be read.
+     * @throws IOException
+     */
+    public FileEntry describe(String storedPath, FileEntry stored, String saveName, FileEntry known)
+            throws IOException;
+
+    /**
+     * Returns whether all data of a stored save is present, which it may not
+     * be while the cloud client is still downloading it.
+     * 
+     * @param storedPath The file that stores the save.
+     * @return True if the save can be restored.
+     */
+    public boolean isAvailable(String storedPath);
+
+    /**
+     * Stores a save file, replacing an older version.
+     * 
+     * @param saveFile The save file.
+     * @param storedPath The file to store it in.
+     * @return The entry of the stored save, with its content hash.
+     * @throws IOException
+     */
+    public FileEntry store(File saveFile, String storedPath) throws IOException;
+
+    /**
+     * Restores a save file, replacing an older version. The save file gets the
+     * modification time of the stored save.
+     * 
+     * @param storedPath The file that stores the save.
+     * @param saveFile The save file to write.
+     * @return The content hash of the written data, if it was computed while
+     *         writing, or FileEntry.NO_HASH.
+     * @throws IOException
+     */
+    public long restore(String storedPath, File saveFile) throws IOException;
+
+    /**
+     * Reads all data of a stored save and hashes it, to check that it was
+     * stored correctly.
+     * 
+     * @param storedPath The file that stores the save.
+     * @return The content hash of the save.
+     * @throws IOException
+     */
+    public long hashStored(String storedPath) throws IOException;
+
+    /**
+     * Removes stored saves, all at once.
+     * 
+     * @param storedPaths The files that store the saves.
+     * @throws IOException
+     */
+    public void delete(Collection<String> storedPaths) throws IOException;
+
+    /**
+     * Removes data that is no longer used by any stored save.
+     * 
+     * @throws IOException
+     */
+    public void collectGarbage() throws IOException;
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import nl.koziuk.crowsync.persist.FileEntry;
+import nl.koziuk.crowsync.persist.Version;
+
+/**
+ * What a scan of a single game is going to do, decided from snapshots of its
+ * save directory, its sync directory and its history before anything is
+ * written. A plan can't be changed; the synchronizer carries it out, or in
+ * dry-run mode only writes it down.
+ * 
+ * The operations are grouped by the directory they write to, in the order in
+ * which they are carried out: conflicting versions to the conflicts
+ * directory, received saves to the save directory, changes that need no
+ * copying, and finally sent and removed saves to the sync directory.
+ * 
+ * @author marcin
+ */
+public class SyncPlan {
+
+    /**
+     * Copy the version of a conflicting save in the sync folder to the
+     * conflicts directory.
+     */
+    public static final int KEEP_CONFLICT = 0;
+
+    /**
+     * Copy a save from the sync folder to the save directory.
+     */
+    public static final int RECEIVE = 1;
+
+    /**
+     * Record a save that is the same on both sides in the history.
+     */
+    public static final int RECORD = 2;
+
+    /**
+     * Give a save that was only touched the modification time of its copy
+     * in the sync folder.
+     */
+    public static final int TOUCH = 3;
+
+    /**
+     * Copy a save to the sync folder, with a new version.
+     */
+    public static final int SEND = 4;
+
+    /**
+     * Remove a save that is no longer among the newest from the sync folder.
+     */
+    public static final int REMOVE = 5;
+
+    private static final String[] TYPE_STRINGS = { "conflict", "receive", "record", "touch", "send", "remove" };
+
+    /**
+     * A single operation on a save file.
+     */
+    public static class Operation {
+        private final int type;
+        private final FileEntry entry;
+        private final Version version;
+
+        /**
+         * Creates an operation.
+         * 
+         * @param type The type of operation, such as SEND.
+         * @param entry The entry of the save in the sync folder for
+         *            KEEP_CONFLICT, RECEIVE, TOUCH and REMOVE, or in the save
+         *            directory for RECORD and SEND.
+         * @param version The version the save gets in the sync folder for
+         *            SEND, the version in the sync folder for RECORD, or
+         *            null.
+         */
+        public Operation(int type, FileEntry entry, Version version) {
+            this.type = type;
+            this.entry = entry;
+            this.version = version;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public FileEntry getEntry() {
+            return entry;
+        }
+
+        public Version getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns whether the operation copies a save file.
+         * 
+         * @return True for KEEP_CONFLICT, RECEIVE and SEND.
+         */
+        public boolean isCopy() {
+            return type == KEEP_CONFLICT || type == RECEIVE || type == SEND;
+        }
+
+        @Override
+        public String toString() {
+            return TYPE_STRINGS[type] + " " + entry.getName() + (type == SEND ? " as " + version : "");
+        }
+    }
+
+    private final String gameName;
+    private final long generation;
+    private final List<Operation> operations;
+    private final Set<String> saveNames;
+
+    /**
+     * Creates a plan.
+     * 
+     * @param gameName The name of the game.
+     * @param generation The generation of the sync directory the plan was
+     *            made from.
+     * @param operations The operations, grouped by type in the order of the
+     *            type constants.
+     * @param saveNames The names of the files in the save directory.
+     */
+    public SyncPlan(String gameName, long generation, List<Operation> operations, Collection<String> saveNames) {
+        this.gameName = gameName;
+        this.generation = generation;
+        this.operations = Collections.unmodifiableList(new ArrayList<Operation>(operations));
+        this.saveNames = Collections.unmodifiableSet(new TreeSet<String>(saveNames));
+    }
+
+    public String getGameName() {
+        return gameName;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns all operations, in the order in which they are carried out.
+     * 
+     * @return An unmodifiable list of operations.
+     */
+    public List<Operation> getOperations() {
+        return operations;
+    }
+
+    /**
+     * Returns the operations of a single type.
+     * 
+     * @param type The type, such as SEND.
+     * @return The operations, in order.
+     */
+    public List<Operation> getOperations(int type) {
+        List<Operation> result = new ArrayList<Operation>();
+
+        for (Operation operation : operations) {
+            if (operation.getType() == type) {
+                result.add(operation);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the names of the files in the save directory when the plan was
+     * made.
+     * 
+     * @return An unmodifiable set of file names.
+     */
+    public Set<String> getSaveNames() {
+        return saveNames;
+    }
+
+    /**
+     * Returns whether the plan changes any file. RECORD operations only
+     * update the history, which is done on every scan of a synchronized
+     * game, so a plan with nothing else has no work.
+     * 
+     * @return True if there is an operation other than RECORD.
+     */
+    public boolean hasWork() {
+        for (Operation operation : operations) {
+            if (operation.getType() != RECORD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns how many save files the plan copies.
+     * 
+     * @return The number of copy operations.
+     */
+    public int countCopies() {
+        int count = 0;
+
+        for (Operation operation : operations) {
+            if (operation.isCopy()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Describes the plan, one operation per line, for dry runs. RECORD
+     * operations are left out, since they don't change any file.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(gameName + " (generation " + generation + ")\n");
+
+        for (Operation operation : operations) {
+            if (operation.getType() != RECORD) {
+                builder.append("    ").append(operation).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -24,6 +24,7 @@ import nl.koziuk.crowsync.sync.SynchronizerTask.ExitTask;
 import nl.koziuk.crowsync.sync.SynchronizerTask.RestartTask;
 import nl.koziuk.crowsync.sync.SynchronizerTask.StartTask;
 import nl.koziuk.crowsync.sync.SynchronizerTask.StopTask;
+import nl.koziuk.crowsync.sync.SynchronizerTask.SyncNowTask;
 import nl.koziuk.crowsync.systray.CrowSyncSystray;
 import nl.koziuk.crowsync.util.IconUtil;
 
@@ -61,6 +62,13 @@ public abstract class SynchronizerMonitor {
 
     }
 
+    /**
+     * Action of the Sync now menu item.
+     */
+    protected void syncNowAction() {
+        sendSyncTask(new SyncNowTask());
+    }
+
     /**
      * Action of the Exit menu item.
      */
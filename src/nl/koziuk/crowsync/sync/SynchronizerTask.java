@@ -15,6 +15,8 @@
  */
 package nl.koziuk.crowsync.sync;
 
+import java.util.Set;
+
 import nl.koziuk.crowsync.persist.ConfigFile;
 import nl.koziuk.crowsync.persist.GameFile;
 import nl.koziuk.crowsync.systray.SystrayTask.RestartedTask;
@@ -109,6 +111,96 @@ public interface SynchronizerTask {
         }
     }
 
+    /**
+     * Tells the synchronization thread that the directories of some games have
+     * changed and need to be scanned.
+     * 
+     * @author marcin
+     */
+    public static class ChangedTask implements SynchronizerTask {
+        private final Set<String> gameNames;
+        private final Set<String> syncDirNames;
+
+        public ChangedTask(Set<String> gameNames, Set<String> syncDirNames) {
+            this.gameNames = gameNames;
+            this.syncDirNames = syncDirNames;
+        }
+
+        @Override
+        public boolean perform(CrowSyncSynchronizer crowSync) {
+            crowSync.markChanged(gameNames, syncDirNames);
+            return true;
+        }
+    }
+
+    /**
+     * Tells the synchronization thread that changes may have been missed, so
+     * every game needs to be scanned.
+     * 
+     * @author marcin
+     */
+    public static class RescanTask implements SynchronizerTask {
+        @Override
+        public boolean perform(CrowSyncSynchronizer crowSync) {
+            crowSync.requestRescan();
+            return true;
+        }
+    }
+
+    /**
+     * Tells the synchronization thread that a game has exited, so its saves
+     * can be sent right away.
+     * 
+     * @author marcin
+     */
+    public static class GameExitedTask implements SynchronizerTask {
+        private final String gameName;
+
+        public GameExitedTask(String gameName) {
+            this.gameName = gameName;
+        }
+
+        @Override
+        public boolean perform(CrowSyncSynchronizer crowSync) {
+            crowSync.gameExited(gameName);
+            return true;
+        }
+    }
+
+    /**
+     * Tells the synchronization thread that a game has been started, so its
+     * saves are scanned often while it is played.
+     * 
+     * @author marcin
+     */
+    public static class GameLaunchedTask implements SynchronizerTask {
+        private final String gameName;
+
+        public GameLaunchedTask(String gameName) {
+            this.gameName = gameName;
+        }
+
+        @Override
+        public boolean perform(CrowSyncSynchronizer crowSync) {
+            crowSync.gameLaunched(gameName);
+            return true;
+        }
+    }
+
+    /**
+     * Tells the synchronization thread to scan every game right away, as
+     * asked by the user.
+     * 
+     * @author marcin
+     */
+    public static class SyncNowTask implements SynchronizerTask {
+        @Override
+        public boolean perform(CrowSyncSynchronizer crowSync) {
+            crowSync.syncNow();
+            return true;
+        }
+    }
+
     /**
      * The task to perform. The return value will be used to decide whether to
      * stop listening for new tasks.
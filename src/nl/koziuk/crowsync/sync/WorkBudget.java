@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.koziuk.crowsync.sync.SyncPlan.Operation;
+
+/**
+ * Limits the file operations and bytes copied per timestep, so that a game
+ * with many saves can't hold up the synchronizer, and shares them fairly
+ * among the games with deficit round robin. Every game with work gets an
+ * equal quantum per timestep; what it doesn't use is kept as its deficit
+ * while it has work left, so a save that is larger than a quantum is copied
+ * once enough timesteps have passed.
+ * 
+ * Operations are taken from the start of a plan until one doesn't fit. The
+ * rest of the plan is dropped, and the game is planned again during the
+ * next timestep, so carried-over work is never stale.
+ * 
+ * @author marcin
+ */
+public class WorkBudget {
+    // large enough for any plan, small enough to add a quantum to
+    private static final long UNLIMITED = Long.MAX_VALUE / 4;
+
+    /**
+     * What a single game may still do during the current timestep. Only
+     * used by the worker that carries out the game's plan.
+     */
+    public class Allowance {
+        private long operations;
+        private long bytes;
+        private boolean exhausted = false;
+
+        private Allowance(long operations, long bytes) {
+            this.operations = operations;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Takes the cost of an operation. Once an operation doesn't fit, or
+         * the timestep is cancelled, no later operation fits either, so that
+         * the plan is always carried out from the start.
+         * 
+         * @param operation The operation.
+         * @return True if it may be carried out.
+         */
+        public boolean take(Operation operation) {
+            // only recording in the history costs nothing
+            long operationCost = operation.getType() == SyncPlan.RECORD ? 0 : 1;
+            long byteCost = operation.isCopy() ? operation.getEntry().getSize() : 0;
+
+            if (exhausted || cancelled || operationCost > operations || byteCost > bytes) {
+                exhausted = true;
+                return false;
+            }
+
+            operations -= operationCost;
+            bytes -= byteCost;
+            return true;
+        }
+
+        /**
+         * Returns whether an operation was refused, so the game has work
+         * left.
+         * 
+         * @return True if the plan was not carried out completely.
+         */
+        public boolean isExhausted() {
+            return exhausted;
+        }
+    }
+
+    private long operationsPerTimestep = 0;
+    private long bytesPerTimestep = 0;
+    private long operationQuantum = UNLIMITED;
+    private long byteQuantum = UNLIMITED;
+
+    // the unused quantum of every game with work left, as operations and
+    // bytes
+    private final Map<String, long[]> deficits = new HashMap<String, long[]>();
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * Sets the budget.
+     * 
+     * @param operationsPerTimestep The most file operations per timestep, or
+     *            0 for no limit.
+     * @param bytesPerTimestep The most bytes copied per timestep, or 0 for no
+     *            limit.
+     */
+    public void setLimits(long operationsPerTimestep, long bytesPerTimestep) {
+        this.operationsPerTimestep = operationsPerTimestep;
+        this.bytesPerTimestep = bytesPerTimestep;
+    }
+
+    /**
+     * Forgets the deficits of all games.
+     */
+    public void clear() {
+        deficits.clear();
+    }
+
+    /**
+     * Starts a timestep.
+     */
+    public void beginTimestep() {
+        cancelled = false;
+    }
+
+    /**
+     * Divides the budget of the timestep among the games that have work.
+     * 
+     * @param games The number of games with a plan that does anything.
+     */
+    public void divide(int games) {
+        operationQuantum = quantum(operationsPerTimestep, games);
+        byteQuantum = quantum(bytesPerTimestep, games);
+    }
+
+    /**
+     * Returns the allowance of a game for this timestep: its quantum plus its
+     * deficit.
+     * 
+     * @param gameName The name of the game.
+     * @return The allowance.
+     */
+    public Allowance allow(String gameName) {
+        long[] deficit = deficits.get(gameName);
+
+        if (deficit == null) {
+            return new Allowance(operationQuantum, byteQuantum);
+        }
+        return new Allowance(Math.min(UNLIMITED, deficit[0] + operationQuantum),
+                Math.min(UNLIMITED, deficit[1] + byteQuantum));
+    }
+
+    /**
+     * Keeps the unused allowance of a game that has work left, and forgets
+     * it for a game that is done.
+     * 
+     * @param gameName The name of the game.
+     * @param allowance Its allowance, or null if it had nothing to do.
+     */
+    public void finish(String gameName, Allowance allowance) {
+        if (allowance != null && allowance.isExhausted()) {
+            deficits.put(gameName, new long[] { allowance.operations, allowance.bytes });
+        } else {
+            deficits.remove(gameName);
+        }
+    }
+
+    /**
+     * Returns whether any game has work left from an earlier timestep.
+     * 
+     * @return True if a game has work left.
+     */
+    public boolean hasCarryOver() {
+        return !deficits.isEmpty();
+    }
+
+    /**
+     * Makes every allowance refuse further operations, so that the workers
+     * stop at the next operation.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Returns whether the timestep was cancelled.
+     * 
+     * @return True if cancel() was called since the timestep began.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private static long quantum(long perTimestep, int games) {
+        if (perTimestep <= 0) {
+            return UNLIMITED;
+        }
+        return Math.max(1, perTimestep / Math.max(1, games));
+    }
+}
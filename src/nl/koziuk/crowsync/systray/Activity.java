@@ -34,12 +34,15 @@ public class Activity {
     public static final int REMOVED = 3;
     public static final int RECEIVED = 4;
     public static final int SENT = 5;
+    public static final int VERIFYFAILED = 6;
+    public static final int CONFLICT = 7;
 
     private static final String[] TYPE_STRINGS = {
-            "STARTED", "STOPPED", "RESTARTED", "REMOVED", "RECEIVED", "SENT"
+            "STARTED", "STOPPED", "RESTARTED", "REMOVED", "RECEIVED", "SENT", "VERIFYFAILED", "CONFLICT"
     };
     private static final String[] TYPE_ICONS = {
-            "start.png", "stop.png", "restart.png", "trash.png", "received.png", "copied.png"
+            "start.png", "stop.png", "restart.png", "trash.png", "received.png", "copied.png", "removed.png",
+            "received.png"
     };
 
     private int type;
@@ -229,6 +232,10 @@ public class Activity {
             return "Received " + game + " save file \"" + filename + "\".";
         case SENT:
             return "Sent " + game + " save file \"" + filename + "\".";
+        case VERIFYFAILED:
+            return "Could not verify the copy of " + game + " save file \"" + filename + "\".";
+        case CONFLICT:
+            return "Kept the other version of changed " + game + " save file as \"" + filename + "\".";
         default:
             return "?";
         }
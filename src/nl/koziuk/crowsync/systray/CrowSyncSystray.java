@@ -69,6 +69,7 @@ public class CrowSyncSystray extends SynchronizerMonitor {
     private JMenuItem startItem;
     private JMenuItem stopItem;
     private JMenuItem restartItem;
+    private JMenuItem syncNowItem;
     private TrayIcon trayIcon = null;
     private SystemTray tray = null;
 
@@ -222,6 +223,22 @@ public class CrowSyncSystray extends SynchronizerMonitor {
         }
     }
 
+    /**
+     * Shows how many save files have been copied in the tooltip of the icon.
+     * 
+     * @param done The number of files copied so far.
+     * @param total The number of files to copy.
+     */
+    public void setProgress(int done, int total) {
+        if (trayIcon != null) {
+            if (done < total) {
+                trayIcon.setToolTip(CrowSync.PROGRAM_NAME + " - copying save files (" + done + "/" + total + ")");
+            } else {
+                trayIcon.setToolTip(CrowSync.PROGRAM_NAME);
+            }
+        }
+    }
+
     /**
      * Returns the currently loaded configuration file. Access to methods this
      * variable from other threads should be synchronized.
@@ -253,14 +270,17 @@ public class CrowSyncSystray extends SynchronizerMonitor {
             startItem.setVisible(false);
             restartItem.setVisible(true);
             stopItem.setVisible(true);
+            syncNowItem.setVisible(true);
         } else if (status == CrowSyncSynchronizer.STOPPED) {
             startItem.setVisible(true);
             restartItem.setVisible(false);
             stopItem.setVisible(false);
+            syncNowItem.setVisible(false);
         } else {
             startItem.setVisible(true);
             restartItem.setVisible(true);
             stopItem.setVisible(true);
+            syncNowItem.setVisible(true);
         }
 
         // notify the app
@@ -387,6 +407,15 @@ public class CrowSyncSystray extends SynchronizerMonitor {
             }
         });
 
+        syncNowItem = new JMenuItem("Sync now");
+        popupMenu.add(syncNowItem);
+        syncNowItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent arg0) {
+                syncNowAction();
+            }
+        });
+
         popupMenu.addSeparator();
 
         JMenuItem exitItem = new JMenuItem("Exit");
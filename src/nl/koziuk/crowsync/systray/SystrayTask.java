@@ -135,6 +135,71 @@ public interface SystrayTask {
 
     }
 
+    /**
+     * Notifies that a copied save file did not match the original, even after
+     * copying it again.
+     */
+    public class VerifyFailedTask implements SystrayTask {
+
+        private final Activity activity;
+
+        public VerifyFailedTask(String gameName, String path) {
+            activity = new Activity(Activity.VERIFYFAILED, path, gameName);
+        }
+
+        @Override
+        public boolean perform(CrowSyncSystray systray) {
+
+            systray.addToLog(activity);
+            systray.showMessage("Could not copy " + activity.getGame() + " save file correctly.");
+            return true;
+        }
+
+    }
+
+    /**
+     * Notifies that a save file was changed both locally and by another
+     * machine, and that the other version was kept aside.
+     */
+    public class ConflictTask implements SystrayTask {
+
+        private final Activity activity;
+
+        public ConflictTask(String gameName, String path) {
+            activity = new Activity(Activity.CONFLICT, path, gameName);
+        }
+
+        @Override
+        public boolean perform(CrowSyncSystray systray) {
+
+            systray.addToLog(activity);
+            systray.showMessage(activity.getGame() + " save file was changed on another machine too; kept both.");
+            return true;
+        }
+
+    }
+
+    /**
+     * Notifies how many save files have been copied during the current scan.
+     */
+    public class ProgressTask implements SystrayTask {
+
+        private final int done;
+        private final int total;
+
+        public ProgressTask(int done, int total) {
+            this.done = done;
+            this.total = total;
+        }
+
+        @Override
+        public boolean perform(CrowSyncSystray systray) {
+            systray.setProgress(done, total);
+            return true;
+        }
+
+    }
+
     /**
      * Notifies the systray thread to stop and also quit the app thread.
      * 
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream into chunks at content-defined boundaries, using a gear
+ * rolling hash. Because a boundary only depends on the last 64 bytes before
+ * it, an insertion or removal only changes the chunks around it, and the same
+ * data in different files results in the same chunks.
+ * 
+ * Chunks are between 16 KB and 256 KB, about 80 KB on average.
+ * 
+ * @author marcin
+ */
+public class ContentChunker {
+    public static final int MIN_CHUNK_SIZE = 16 * 1024;
+    public static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    // a boundary where the top 16 bits are zero, so every 64 KB on average
+    private static final long BOUNDARY_MASK = 0xffff000000000000L;
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // fixed pseudo random values, every machine must find the same
+        // boundaries
+        long seed = 0x43726f7753796e63L;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int position = 0;
+    private int limit = 0;
+
+    /**
+     * Creates a chunker. The stream is not closed by the chunker.
+     * 
+     * @param in The stream to split.
+     */
+    public ContentChunker(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next chunk.
+     * 
+     * @param chunk The array to put the chunk in, at least MAX_CHUNK_SIZE
+     *            long.
+     * @return The length of the chunk, or -1 at the end of the stream.
+     * @throws IOException
+     */
+    public int next(byte[] chunk) throws IOException {
+        long hash = 0;
+        int length = 0;
+
+        while (length < MAX_CHUNK_SIZE) {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    break;
+                }
+            }
+
+            byte b = buffer[position++];
+            chunk[length++] = b;
+            hash = (hash << 1) + GEAR[b & 0xff];
+
+            if (length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) {
+                break;
+            }
+        }
+
+        return length == 0 ? -1 : length;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Decides when written files are forced to disk. Every file is written to a
+ * temporary file and renamed into place; what happens around the rename
+ * depends on the mode:
+ * 
+ * <ul>
+ * <li>NONE leaves it to the operating system.</li>
+ * <li>FILE forces the data of every file before the rename and its directory
+ * after it.</li>
+ * <li>GROUP forces the data of every file before the rename as well, so a
+ * crash never leaves a renamed file without its data. The directories of the
+ * files renamed by a thread between begin and commit are collected and each
+ * forced once at commit. A group is also committed when it gets too old.
+ * Threads that haven't begun a group write like FILE.</li>
+ * </ul>
+ * 
+ * @author marcin
+ */
+public class Durability {
+    public static final int NONE = 0;
+    public static final int FILE = 1;
+    public static final int GROUP = 2;
+
+    private static final long MAX_GROUP_AGE = 10 * 1000;
+
+    private static volatile int mode = GROUP;
+
+    /**
+     * The directories of the files renamed by a thread since the group
+     * began.
+     */
+    private static class Group {
+        final Set<File> dirs = new LinkedHashSet<File>();
+        long since = System.currentTimeMillis();
+    }
+
+    private static final ThreadLocal<Group> groups = new ThreadLocal<Group>();
+
+    /**
+     * Sets the mode for all threads.
+     * 
+     * @param mode NONE, FILE or GROUP.
+     */
+    public static void setMode(int mode) {
+        Durability.mode = mode;
+    }
+
+    /**
+     * Returns the mode.
+     * 
+     * @return NONE, FILE or GROUP.
+     */
+    public static int getMode() {
+        return mode;
+    }
+
+    /**
+     * Starts collecting the files renamed by the current thread.
+     */
+    public static void begin() {
+        if (groups.get() == null) {
+            groups.set(new Group());
+        }
+    }
+
+    /**
+     * Makes the renames collected by the current thread durable, and keeps
+     * collecting.
+     * 
+     * @throws IOException
+     */
+    public static void commit() throws IOException {
+        Group group = groups.get();
+
+        if (group != null) {
+            groups.set(new Group());
+            for (File dir : group.dirs) {
+                forceDirectory(dir);
+            }
+        }
+    }
+
+    /**
+     * Stops collecting the files renamed by the current thread. Renames that
+     * weren't committed are left to the operating system.
+     */
+    public static void end() {
+        groups.remove();
+    }
+
+    /**
+     * Called before a temporary file is renamed into place.
+     * 
+     * @param channel The channel the file was written through.
+     * @throws IOException
+     */
+    static void written(FileChannel channel) throws IOException {
+        if (mode != NONE) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Called after a file has been renamed into place.
+     * 
+     * @param file The renamed file.
+     * @throws IOException
+     */
+    static void renamed(File file) throws IOException {
+        Group group = groups.get();
+
+        if (mode == FILE || (mode == GROUP && group == null)) {
+            forceDirectory(file.getParentFile());
+        } else if (mode == GROUP) {
+            group.dirs.add(file.getParentFile());
+
+            if (System.currentTimeMillis() - group.since >= MAX_GROUP_AGE) {
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Makes renames in a directory durable. Windows doesn't need (or allow)
+     * this, and some file systems don't support it.
+     */
+    private static void forceDirectory(File dir) {
+        if (dir == null || OSUtil.isWindows()) {
+            return;
+        }
+
+        FileChannel channel = null;
+
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            channel.force(true);
+        } catch (IOException e) {
+            // om nom nom!
+        } finally {
+            FileUtil.closeQuietly(channel);
+        }
+    }
+}
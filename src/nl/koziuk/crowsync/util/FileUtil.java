@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Utility class for file operations that java.io.File doesn't offer.
+ * 
+ * @author marcin
+ */
+public class FileUtil {
+    private static final String TEMP_SUFFIX = ".crowsync-tmp";
+
+    // no file takes this long to write, so an older temporary file was left
+    // behind by a crash
+    private static final long STALE_TEMP_AGE = 60 * 60 * 1000;
+
+    /**
+     * Returns the temporary file that is used while writing a file. It is in
+     * the same directory, so that it can be renamed atomically.
+     * 
+     * @param file The file that will be written.
+     * @return The temporary file.
+     */
+    public static File tempFileFor(File file) {
+        return new File(file.getParentFile(), tempNameFor(file.getName()));
+    }
+
+    /**
+     * Returns the name of the temporary file that is used while writing a
+     * file, for storage that is not accessed through java.io.File.
+     * 
+     * @param name The name of the file that will be written.
+     * @return The name of the temporary file.
+     */
+    public static String tempNameFor(String name) {
+        return "." + name + TEMP_SUFFIX;
+    }
+
+    /**
+     * Returns whether a file name is that of a temporary file, which should
+     * not be synchronized.
+     * 
+     * @param name The file name.
+     * @return True if it is a temporary file.
+     */
+    public static boolean isTempFile(String name) {
+        return name.startsWith(".") && name.endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * Removes a temporary file that was left behind by a crash, on this or
+     * another machine sharing the sync folder. Temporary files that may still
+     * be written are left alone.
+     * 
+     * @param file A temporary file.
+     * @return True if it was removed.
+     */
+    public static boolean deleteStaleTempFile(File file) {
+        return isStaleTempFile(file.lastModified()) && file.delete();
+    }
+
+    /**
+     * Returns whether a temporary file was left behind by a crash and may be
+     * removed, judging by its modification time.
+     * 
+     * @param lastModified The modification time of the temporary file.
+     * @return True if it is no longer being written.
+     */
+    public static boolean isStaleTempFile(long lastModified) {
+        return lastModified != 0 && System.currentTimeMillis() - lastModified > STALE_TEMP_AGE;
+    }
+
+    /**
+     * Forces everything written to a file to the disk, unless the Durability
+     * mode is NONE. Must be called before a temporary file is renamed into
+     * place, or a crash could leave a renamed file without its data.
+     * 
+     * @param channel The channel the file was written through.
+     * @throws IOException
+     */
+    public static void forceToDisk(FileChannel channel) throws IOException {
+        Durability.written(channel);
+    }
+
+    /**
+     * Forces everything written to a file to the disk, unless the Durability
+     * mode is NONE. Streams wrapped around the file stream must
+     * be flushed first.
+     * 
+     * @param out The stream the file was written through.
+     * @throws IOException
+     */
+    public static void forceToDisk(FileOutputStream out) throws IOException {
+        forceToDisk(out.getChannel());
+    }
+
+    /**
+     * Renames a file, replacing the target if it exists. The rename is atomic
+     * if the file system supports it, and made durable as the Durability mode
+     * says.
+     * 
+     * @param source The file to rename.
+     * @param target The new name.
+     * @throws IOException
+     */
+    public static void moveAtomically(File source, File target) throws IOException {
+        OwnChanges.moving(source, target);
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Durability.renamed(target);
+    }
+
+    /**
+     * Closes a stream or channel, ignoring errors.
+     * 
+     * @param closeable The thing to close, may be null.
+     */
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // om nom nom!
+            }
+        }
+    }
+}
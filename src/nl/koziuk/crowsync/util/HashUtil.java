@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Utility class for hashing file contents.
+ * 
+ * @author marcin
+ */
+public class HashUtil {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // large files are hashed through a memory mapping, a region at a time
+    private static final long MAP_THRESHOLD = 4 * 1024 * 1024;
+    private static final long MAP_REGION_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Hashes the content of a file with xxHash64. Large files are memory
+     * mapped, except on Windows, where a mapping keeps the file locked until
+     * it is garbage collected and the game could not replace its save.
+     * 
+     * @param file The file.
+     * @return The hash value.
+     * @throws IOException
+     */
+    public static long hashFile(File file) throws IOException {
+        XxHash64 hash = new XxHash64();
+        FileChannel channel = null;
+
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+            if (channel.size() >= MAP_THRESHOLD && !OSUtil.isWindows()) {
+                hashMapped(channel, hash);
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    hash.update(buffer);
+                    buffer.clear();
+                }
+            }
+        } finally {
+            FileUtil.closeQuietly(channel);
+        }
+
+        return hash.getValue();
+    }
+
+    /**
+     * Hashes everything that can be read from a stream with xxHash64. The
+     * stream is not closed.
+     * 
+     * @param in The stream.
+     * @return The hash value.
+     * @throws IOException
+     */
+    public static long hashStream(InputStream in) throws IOException {
+        XxHash64 hash = new XxHash64();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+
+        while ((length = in.read(buffer)) >= 0) {
+            hash.update(buffer, 0, length);
+        }
+        return hash.getValue();
+    }
+
+    private static void hashMapped(FileChannel channel, XxHash64 hash) throws IOException {
+        long size = channel.size();
+
+        for (long position = 0; position < size; position += MAP_REGION_SIZE) {
+            long length = Math.min(MAP_REGION_SIZE, size - position);
+            hash.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+        }
+    }
+
+    /**
+     * Formats a hash as 16 hexadecimal digits.
+     * 
+     * @param hash The hash value.
+     * @return The hexadecimal string.
+     */
+    public static String toHex(long hash) {
+        String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Parses a hash written by toHex.
+     * 
+     * @param hex The hexadecimal string.
+     * @return The hash value.
+     * @throws NumberFormatException If the string is not a hash.
+     */
+    public static long fromHex(String hex) {
+        if (hex.length() != 16) {
+            throw new NumberFormatException("Not a hash: " + hex);
+        }
+        return (Long.parseLong(hex.substring(0, 8), 16) << 32) | Long.parseLong(hex.substring(8), 16);
+    }
+}
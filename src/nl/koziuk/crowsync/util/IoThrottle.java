@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how fast save files are copied, so that copying doesn't make a game
+ * that is being played stutter. There is a limit on bytes per second and one
+ * on operations per second, such as writing a file. Both are token buckets
+ * shared by all threads, so copies that run at the same time share the
+ * rate. A bucket holds at most one second's worth of tokens; a thread that
+ * takes more tokens than are left waits until the bucket has refilled.
+ * 
+ * @author marcin
+ */
+public class IoThrottle {
+
+    /**
+     * The most bytes to copy between two calls to transfer(), so that large
+     * files are slowed down evenly.
+     */
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    private static final Bucket bytes = new Bucket();
+    private static final Bucket operations = new Bucket();
+
+    /**
+     * A token bucket that may go into debt. Taking tokens never blocks other
+     * threads; every thread waits for its own debt outside the lock.
+     */
+    private static class Bucket {
+        private long rate = 0;
+        private double tokens = 0;
+        private long lastRefill = System.nanoTime();
+
+        synchronized void setRate(long rate) {
+            refill();
+            this.rate = rate;
+            tokens = Math.min(tokens, rate);
+        }
+
+        void take(long count) throws InterruptedIOException {
+            long wait;
+
+            synchronized (this) {
+                if (rate <= 0 || count <= 0) {
+                    return;
+                }
+                refill();
+                tokens -= count;
+                wait = tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+            }
+
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the copy limit");
+                }
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+
+            if (rate > 0) {
+                tokens = Math.min(rate, tokens + (double) (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+            }
+            lastRefill = now;
+        }
+    }
+
+    /**
+     * Sets the limits for all threads. Threads that are already waiting keep
+     * waiting for the old limit.
+     * 
+     * @param bytesPerSecond The most bytes to copy per second, or 0 for no
+     *            limit.
+     * @param operationsPerSecond The most operations per second, or 0 for no
+     *            limit.
+     */
+    public static void setLimits(long bytesPerSecond, long operationsPerSecond) {
+        bytes.setRate(bytesPerSecond);
+        operations.setRate(operationsPerSecond);
+    }
+
+    /**
+     * Called before an operation, such as copying or writing a file. Waits
+     * if there have been too many operations.
+     * 
+     * @throws InterruptedIOException If the thread was interrupted while
+     *             waiting.
+     */
+    public static void operation() throws InterruptedIOException {
+        operations.take(1);
+    }
+
+    /**
+     * Called after copying bytes. Waits if too many bytes have been copied.
+     * 
+     * @param count The number of bytes, at most about CHUNK_SIZE.
+     * @throws InterruptedIOException If the thread was interrupted while
+     *             waiting.
+     */
+    public static void transfer(long count) throws InterruptedIOException {
+        bytes.take(count);
+    }
+}
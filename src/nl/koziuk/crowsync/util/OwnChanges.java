@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.util;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the files this program is about to write, touch or remove, so
+ * that the directory watcher can tell its own changes from those of games
+ * and other machines. Changes are announced before they are made, since the
+ * watcher may see them right away. A file only counts as changed by this
+ * program while its size and modification time are what the change made
+ * them, so a game that writes the same file again is still noticed, and so
+ * is a change that failed. Changes are forgotten after a while.
+ * 
+ * @author marcin
+ */
+public class OwnChanges {
+    private static final long EXPIRY = 10 * 1000;
+
+    // purge expired changes when there are more than this many
+    private static final int MAX_CHANGES = 1000;
+
+    /**
+     * What a file is like after this program has changed it; a length of -1
+     * means that it was removed.
+     */
+    private static class Change {
+        final long lastModified;
+        final long length;
+        final long time;
+
+        Change(long lastModified, long length, long time) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.time = time;
+        }
+
+        boolean matches(File file) {
+            return lastModified == file.lastModified() && length == (file.exists() ? file.length() : -1);
+        }
+    }
+
+    private static final ConcurrentMap<String, Change> changes = new ConcurrentHashMap<String, Change>();
+
+    /**
+     * Announces that a file is about to be renamed over another one.
+     * 
+     * @param source The file that is renamed.
+     * @param target The file that is replaced.
+     */
+    public static void moving(File source, File target) {
+        expect(target, source.lastModified(), source.length());
+    }
+
+    /**
+     * Announces that the modification time of a file is about to be set.
+     * 
+     * @param file The file.
+     * @param lastModified The new modification time.
+     */
+    public static void touching(File file, long lastModified) {
+        expect(file, lastModified, file.length());
+    }
+
+    /**
+     * Announces that a file is about to be removed.
+     * 
+     * @param file The file.
+     */
+    public static void deleting(File file) {
+        expect(file, 0, -1);
+    }
+
+    private static void expect(File file, long lastModified, long length) {
+        long now = System.currentTimeMillis();
+
+        if (changes.size() > MAX_CHANGES) {
+            Iterator<Change> it = changes.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().time >= EXPIRY) {
+                    it.remove();
+                }
+            }
+        }
+
+        changes.put(file.getAbsolutePath(), new Change(lastModified, length, now));
+    }
+
+    /**
+     * Returns whether a file is as this program has just left it.
+     * 
+     * @param file The file.
+     * @return True if the last change to the file was made by this program.
+     */
+    public static boolean isOwnChange(File file) {
+        String path = file.getAbsolutePath();
+        Change change = changes.get(path);
+
+        if (change == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - change.time >= EXPIRY) {
+            changes.remove(path, change);
+            return false;
+        }
+        return change.matches(file);
+    }
+}
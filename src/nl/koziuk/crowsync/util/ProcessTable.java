@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2011, Marcin Koziuk <marcin.koziuk@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package nl.koziuk.crowsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A snapshot of the names of the running executables, shared by all games.
+ * Listing the processes is expensive (on Windows it starts tasklist.exe), so
+ * the snapshot is kept until it expires and every lookup is a hash set
+ * lookup. Names are compared case-insensitively.
+ * 
+ * @author marcin
+ */
+public class ProcessTable {
+    private long timeToLive;
+
+    private Set<String> snapshot = null;
+    private long snapshotTime = 0;
+
+    /**
+     * Creates a process table. Nothing is listed until the first lookup.
+     * 
+     * @param timeToLive The number of milliseconds a snapshot may be used, or
+     *            0 to take a new snapshot every synchronization cycle.
+     */
+    public ProcessTable(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Sets how long a snapshot may be used.
+     * 
+     * @param timeToLive The number of milliseconds a snapshot may be used, or
+     *            0 to take a new snapshot every synchronization cycle.
+     */
+    public synchronized void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Tells the table that a new synchronization cycle starts. If snapshots
+     * only live for a single cycle, the current one is thrown away.
+     */
+    public synchronized void newCycle() {
+        if (timeToLive <= 0) {
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Returns whether an executable is running, taking a new snapshot first if
+     * the current one has expired.
+     * 
+     * @param executablePath The path or file name of the executable.
+     * @return True if a process of that executable is running.
+     */
+    public synchronized boolean contains(String executablePath) {
+        long now = System.currentTimeMillis();
+
+        if (snapshot == null || (timeToLive > 0 && now - snapshotTime >= timeToLive)) {
+            snapshot = listRunningExecutables();
+            snapshotTime = now;
+        }
+
+        return snapshot.contains(executableName(executablePath));
+    }
+
+    /**
+     * Returns the names of the running executables, taking a new snapshot
+     * first if the current one is older than the given age. The new snapshot
+     * is used by later lookups as well.
+     * 
+     * @param maxAge The number of milliseconds the snapshot may be old.
+     * @return The lower case executable names.
+     */
+    public synchronized Set<String> getSnapshot(long maxAge) {
+        long now = System.currentTimeMillis();
+
+        if (snapshot == null || now - snapshotTime >= maxAge) {
+            snapshot = listRunningExecutables();
+            snapshotTime = now;
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Returns the name under which an executable appears in a snapshot.
+     * 
+     * @param executablePath The path or file name of the executable, with
+     *            either kind of separator.
+     * @return The lower case file name.
+     */
+    public static String executableName(String executablePath) {
+        int slash = Math.max(executablePath.lastIndexOf('/'), executablePath.lastIndexOf('\\'));
+        return executablePath.substring(slash + 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Lists the lower case file names of the running executables. Only
+     * Windows and Linux are supported, on other systems nothing is running.
+     * 
+     * @return The executable names.
+     */
+    public static Set<String> listRunningExecutables() {
+        Set<String> names = new HashSet<String>();
+
+        if (OSUtil.isWindows()) {
+            for (String process : WindowsUtil.listRunningProcesses()) {
+                names.add(executableName(process));
+            }
+        } else if (OSUtil.isLinux()) {
+            listProcFs(names);
+        }
+
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Adds the executables of all processes in /proc. Both the executable
+     * itself and the first word of the command line are added, so Windows
+     * games started by Wine are found by their .exe name too.
+     * 
+     * @param names The set to add the names to.
+     */
+    private static void listProcFs(Set<String> names) {
+        File[] procDirs = new File("/proc").listFiles();
+
+        if (procDirs == null) {
+            return;
+        }
+
+        for (File procDir : procDirs) {
+            if (!isPid(procDir.getName())) {
+                continue;
+            }
+
+            try {
+                names.add(executableName(Files.readSymbolicLink(new File(procDir, "exe").toPath()).toString()));
+            } catch (IOException e) {
+                // om nom nom! (processes of other users, or already exited)
+            }
+
+            try {
+                byte[] cmdline = Files.readAllBytes(new File(procDir, "cmdline").toPath());
+                int end = 0;
+
+                while (end < cmdline.length && cmdline[end] != 0) {
+                    end++;
+                }
+                if (end > 0) {
+                    names.add(executableName(new String(cmdline, 0, end)));
+                }
+            } catch (IOException e) {
+                // om nom nom!
+            }
+        }
+    }
+
+    /**
+     * Returns whether a /proc entry is a process.
+     */
+    private static boolean isPid(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return name.length() > 0;
+    }
+}
@@ -15,10 +15,9 @@ import java.util.Set;
  */
 public class WindowsUtil {
 
-	// TODO: make linux version with the ps command
-
 	/**
-	 * Returns list of running processes. Only works on windows.
+	 * Returns list of running processes. Only works on windows, use a
+	 * ProcessTable to check whether a game is running on any system.
 	 * 
 	 * @return List of currently running processes.
 	 */
@@ -49,12 +48,15 @@ public class WindowsUtil {
 	/**
 	 * Because Java 6 doesn't support file copying.
 	 * 
+	 * @deprecated Use a CopyEngine, which doesn't need to start a process
+	 *             for every file and also works outside of Windows.
 	 * @param sourceFile
 	 *            The source file.
 	 * @param destDir
 	 *            The destination file.
 	 * @return Whether the copying succeeded or not.
 	 */
+	@Deprecated
 	public static boolean copyFileToDir(File sourceFile, File destDir) {
 		if (!sourceFile.exists() | !sourceFile.isFile()
 				| !destDir.isDirectory()) {